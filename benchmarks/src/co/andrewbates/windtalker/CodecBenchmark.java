@@ -0,0 +1,85 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author Andrew Bates
+ *
+ *         Codec throughput, using the rot47 codec from the example program as
+ *         the baseline. The table codec is the same substitution copied into a
+ *         SubstitutionCodec.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    @Param({ "16", "256", "1024" })
+    int length;
+
+    @Param({ "example", "table" })
+    String implementation;
+
+    private Codec codec;
+    private BufferCodec adapted;
+    private String clear;
+    private String encoded;
+    private CharBuffer target = CharBuffer.allocate(2048);
+
+    @Setup
+    public void setup() {
+        codec = new Rot47Codec();
+        if (implementation.equals("table")) {
+            codec = new SubstitutionCodec.Builder().copy(codec, ' ', '\u007f').build();
+        }
+        adapted = BufferCodec.adapt(codec);
+        clear = Messages.ascii(length);
+        encoded = codec.encode(clear);
+    }
+
+    @Benchmark
+    public String encode() {
+        return codec.encode(clear);
+    }
+
+    @Benchmark
+    public String decode() {
+        return codec.decode(encoded);
+    }
+
+    @Benchmark
+    public CharBuffer adaptedEncode() {
+        return BufferCodec.encode(adapted, CharBuffer.wrap(clear), target);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author Andrew Bates
+ *
+ *         The cost of appending to a full history view, including trimming the
+ *         oldest lines. Each invocation logs a batch of messages and then waits
+ *         for the Event Dispatch Thread to apply them, so the time per
+ *         operation includes the document or list update.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Benchmark)
+public class LogFieldBenchmark {
+    private static final int BATCH = 100;
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    @Param({ "10", "1000", "100000" })
+    int maxLength;
+
+    private LogField logField;
+    private HistoryList historyList;
+    private String[] lines = new String[BATCH];
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException, InvocationTargetException {
+        logField = new LogField("", 50, maxLength);
+        historyList = new HistoryList("", 50, maxLength);
+        for (int i = 0; i < BATCH; i++) {
+            lines[i] = "user" + (i % 7) + ": " + Messages.ascii(20 + i % 40);
+        }
+        for (int i = 0; i < maxLength; i++) {
+            logField.log(lines[i % BATCH]);
+            historyList.log(lines[i % BATCH]);
+        }
+        SwingUtilities.invokeAndWait(NOTHING);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void logField() throws InterruptedException, InvocationTargetException {
+        for (String line : lines) {
+            logField.log(line);
+        }
+        SwingUtilities.invokeAndWait(NOTHING);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void historyList() throws InterruptedException, InvocationTargetException {
+        for (String line : lines) {
+            historyList.log(line);
+        }
+        SwingUtilities.invokeAndWait(NOTHING);
+    }
+}
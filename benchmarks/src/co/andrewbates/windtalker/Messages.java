@@ -0,0 +1,69 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.util.Random;
+
+/**
+ * @author Andrew Bates
+ *
+ *         Generates repeatable chat-like messages for the benchmarks
+ */
+final class Messages {
+    private static final String ASCII = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 .,!?";
+    private static final String MULTIBYTE = "\u00e9\u00fc\u00f1\u00e7\u00df\u03b1\u03b2\u4e2d\u6587";
+
+    private Messages() {
+    }
+
+    /**
+     * Create a message of printable ASCII characters
+     *
+     * @param length
+     *            the number of characters
+     * @return the message
+     */
+    static String ascii(int length) {
+        return generate(length, ASCII, new Random(length));
+    }
+
+    /**
+     * Create a message where roughly one character in four needs more than one
+     * byte in UTF-8
+     *
+     * @param length
+     *            the number of characters
+     * @return the message
+     */
+    static String multibyte(int length) {
+        Random random = new Random(length);
+        StringBuilder s = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            String alphabet = random.nextInt(4) == 0 ? MULTIBYTE : ASCII;
+            s.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return s.toString();
+    }
+
+    private static String generate(int length, String alphabet, Random random) {
+        StringBuilder s = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            s.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author Andrew Bates
+ *
+ *         The cost of the Transceiver send path on its own, with a transport
+ *         that throws every datagram away. Run it with the GC profiler to see
+ *         the bytes allocated per send, which should be zero:
+ *
+ *         <pre>
+ *         ant run -Djmh.args="SendBenchmark -prof gc"
+ *         </pre>
+ */
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SendBenchmark implements Receiver, Transport {
+    @Param({ "ascii", "multibyte" })
+    String text;
+
+    @Param({ "64", "1024" })
+    int length;
+
+    @Param({ "0", "5" })
+    long linger;
+
+    private Transceiver transceiver;
+    private String message;
+    private CharBuffer buffer;
+    private long datagrams;
+
+    @Setup
+    public void setup() throws SocketException {
+        message = text.equals("ascii") ? Messages.ascii(length) : Messages.multibyte(length);
+        buffer = CharBuffer.wrap(message);
+        transceiver = new Transceiver(this, this);
+        if (linger > 0) {
+            transceiver.setBatching(linger, transceiver.getMaxDatagramSize());
+        }
+    }
+
+    @Override
+    public void receive(String message, boolean self) {
+    }
+
+    @Override
+    public void start(Handler handler) {
+    }
+
+    @Override
+    public void send(ByteBuffer payload) {
+        payload.position(payload.limit());
+        datagrams++;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Benchmark
+    public long sendString() throws MessageTooLongException {
+        transceiver.send(message);
+        return datagrams;
+    }
+
+    @Benchmark
+    public long sendBuffer() throws MessageTooLongException {
+        buffer.rewind();
+        transceiver.send(buffer);
+        return datagrams;
+    }
+}
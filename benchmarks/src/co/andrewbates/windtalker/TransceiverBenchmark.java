@@ -0,0 +1,94 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author Andrew Bates
+ *
+ *         Sending and receiving on this host through each transceiver engine.
+ *         A round trip sends a broadcast and waits for our own copy of it to
+ *         come back. Every benchmark runs in its own fork, since the
+ *         transceiver holds on to the Windtalker port.
+ */
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransceiverBenchmark implements Receiver {
+    private static final long ROUND_TRIP_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+    @Param({ "SELECTOR", "BLOCKING" })
+    String engine;
+
+    @Param({ "64", "1024" })
+    int length;
+
+    private Transceiver transceiver;
+    private String message;
+    private volatile long received;
+    private long lost;
+
+    @Setup
+    public void setup() throws SocketException {
+        message = Messages.ascii(length);
+        transceiver = new Transceiver(this, Transceiver.Engine.valueOf(engine));
+    }
+
+    @Override
+    public void receive(String message, boolean self) {
+        received++;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void send() throws MessageTooLongException {
+        transceiver.send(message);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long roundTrip() throws MessageTooLongException {
+        long before = received;
+        transceiver.send(message);
+        long deadline = System.nanoTime() + ROUND_TRIP_TIMEOUT;
+        while (received == before) {
+            if (System.nanoTime() > deadline) {
+                /* the datagram was dropped, give up rather than hang */
+                return ++lost;
+            }
+            Thread.onSpinWait();
+        }
+        return received;
+    }
+}
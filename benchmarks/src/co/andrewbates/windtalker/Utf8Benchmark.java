@@ -0,0 +1,95 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author Andrew Bates
+ *
+ *         The ways an outgoing message can be turned into bytes before it is
+ *         sent: the original String.getBytes calls and the CharsetEncoder
+ *         writing into a reused buffer that Transceiver.send uses
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Utf8Benchmark {
+    @Param({ "64", "1024" })
+    int length;
+
+    @Param({ "ascii", "multibyte" })
+    String text;
+
+    private String message;
+    private CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private ByteBuffer heap = ByteBuffer.allocate(4096);
+    private ByteBuffer direct = ByteBuffer.allocateDirect(4096);
+
+    @Setup
+    public void setup() {
+        message = text.equals("ascii") ? Messages.ascii(length) : Messages.multibyte(length);
+    }
+
+    @Benchmark
+    public byte[] getBytesDefault() {
+        return message.getBytes();
+    }
+
+    @Benchmark
+    public byte[] getBytesUtf8() {
+        return message.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public ByteBuffer encoderHeap() {
+        return encode(heap);
+    }
+
+    @Benchmark
+    public ByteBuffer encoderDirect() {
+        return encode(direct);
+    }
+
+    private ByteBuffer encode(ByteBuffer buffer) {
+        buffer.clear();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(message), buffer, true);
+        encoder.flush(buffer);
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+/**
+ * @author Andrew Bates
+ *
+ *         What to do with a new message when the receive queue is full
+ */
+public enum BackPressure {
+    /**
+     * Throw away the oldest queued message to make room for the new one
+     */
+    DROP_OLDEST,
+
+    /**
+     * Throw away the new message
+     */
+    DROP_NEWEST,
+
+    /**
+     * Wait for room in the queue. This stalls the network thread, so the
+     * operating system will start dropping datagrams instead.
+     */
+    BLOCK
+}
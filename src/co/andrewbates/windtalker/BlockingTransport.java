@@ -0,0 +1,163 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Andrew Bates
+ *
+ *         The original Windtalker transport. Uses a blocking DatagramSocket and
+ *         a dedicated thread to receive datagrams. Kept around so it can be
+ *         compared against the selector based transport. With the VIRTUAL
+ *         execution model the receive thread is a virtual thread, so many of
+ *         these transports do not need many operating system threads.
+ */
+class BlockingTransport implements Transport, Runnable {
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+    private static final long CLOSE_TIMEOUT = 1000;
+
+    private DatagramSocket socket;
+    private BroadcastAddress address;
+    private Handler handler;
+    private byte[] sendBuffer = new byte[MAX_DATAGRAM_SIZE];
+    private DatagramPacket sendPacket;
+    private Thread receiver;
+
+    /**
+     * Open a socket on the given port
+     *
+     * @param port
+     *            the UDP port to send and receive on
+     * @throws SocketException
+     *             thrown if the socket could not be opened
+     */
+    BlockingTransport(int port) throws SocketException {
+        this(port, BroadcastAddress.find());
+    }
+
+    /**
+     * Open a socket on the given port that broadcasts on one interface
+     *
+     * @param port
+     *            the UDP port to send and receive on
+     * @param address
+     *            the interface to broadcast on
+     * @throws SocketException
+     *             thrown if the socket could not be opened
+     */
+    BlockingTransport(int port, BroadcastAddress address) throws SocketException {
+        this.address = address;
+        try {
+            this.socket = new DatagramSocket(port, InetAddress.getByName("0.0.0.0"));
+        } catch (UnknownHostException ex) {
+            throw new RuntimeException("Failed to resolve address 0.0.0.0: " + ex.getMessage());
+        }
+        sendPacket = new DatagramPacket(sendBuffer, 0, address.getBroadcast(), socket.getLocalPort());
+    }
+
+    @Override
+    public synchronized void start(Handler handler) {
+        this.handler = handler;
+        receiver = ExecutionModel.getDefault().start(this, "windtalker-receiver");
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        byte[] payload = new byte[MAX_DATAGRAM_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        DatagramPacket p = new DatagramPacket(payload, payload.length);
+        while (!socket.isClosed()) {
+            try {
+                socket.receive(p);
+                buffer.clear().limit(p.getLength());
+                handler.handle(buffer, (InetSocketAddress) p.getSocketAddress(),
+                        p.getAddress().equals(address.getLocalAddress()));
+            } catch (Exception ex) {
+                if (!socket.isClosed()) {
+                    handler.failed(ex);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void send(ByteBuffer payload) throws IOException {
+        /* the packet is reused, only its length changes from one datagram to the next */
+        int length = payload.remaining();
+        payload.get(sendBuffer, 0, length);
+        sendPacket.setLength(length);
+        socket.send(sendPacket);
+    }
+
+    @Override
+    public int getMaxDatagramSize() {
+        return address.getMaxDatagramSize();
+    }
+
+    @Override
+    public void setReceiveBufferSize(int bytes) throws IOException {
+        socket.setReceiveBufferSize(bytes);
+    }
+
+    @Override
+    public int getReceiveBufferSize() throws IOException {
+        return socket.getReceiveBufferSize();
+    }
+
+    @Override
+    public void setSendBufferSize(int bytes) throws IOException {
+        socket.setSendBufferSize(bytes);
+    }
+
+    @Override
+    public int getSendBufferSize() throws IOException {
+        return socket.getSendBufferSize();
+    }
+
+    /*
+     * Closing the socket wakes the receive thread, which is given a moment to
+     * finish handing over the datagram it has
+     */
+    @Override
+    public void close() {
+        socket.close();
+        Thread receiver;
+        synchronized (this) {
+            receiver = this.receiver;
+        }
+        if (receiver != null && receiver != Thread.currentThread()) {
+            try {
+                receiver.join(CLOSE_TIMEOUT);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * @author Andrew Bates
+ *
+ *         The local address and broadcast address of the interface that
+ *         messages will be sent out of
+ */
+final class BroadcastAddress {
+    private final InetAddress localAddress;
+    private final InetAddress broadcast;
+    private final NetworkInterface networkInterface;
+    private final int mtu;
+
+    private BroadcastAddress(NetworkInterface networkInterface, InetAddress localAddress, InetAddress broadcast,
+            int mtu) {
+        this.networkInterface = networkInterface;
+        this.localAddress = localAddress;
+        this.broadcast = broadcast;
+        this.mtu = mtu;
+    }
+
+    /**
+     * Find the first non-loopback interface that has a broadcast address
+     *
+     * @return the local and broadcast address of the interface
+     * @throws SocketException
+     *             thrown if the network interfaces could not be listed
+     */
+    static BroadcastAddress find() throws SocketException {
+        List<BroadcastAddress> addresses = findAll();
+        if (addresses.isEmpty()) {
+            throw new RuntimeException("Could not find an available broadcast address");
+        }
+        return addresses.get(0);
+    }
+
+    /**
+     * Find every non-loopback interface that has a broadcast address
+     *
+     * @return the local and broadcast address of each interface
+     * @throws SocketException
+     *             thrown if the network interfaces could not be listed
+     */
+    static List<BroadcastAddress> findAll() throws SocketException {
+        System.setProperty("java.net.preferIPv4Stack", "true");
+
+        List<BroadcastAddress> addresses = new ArrayList<BroadcastAddress>();
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces.hasMoreElements()) {
+            NetworkInterface networkInterface = interfaces.nextElement();
+            if (networkInterface.isLoopback() || !networkInterface.isUp())
+                continue; // Skip the loopback interface and any that are down
+            BroadcastAddress address = of(networkInterface);
+            if (address != null) {
+                addresses.add(address);
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Find the broadcast address of each of the given interfaces
+     *
+     * @param interfaces
+     *            the interfaces to broadcast on
+     * @return the local and broadcast address of each interface
+     * @throws SocketException
+     *             thrown if one of the interfaces has no broadcast address
+     */
+    static List<BroadcastAddress> find(Collection<NetworkInterface> interfaces) throws SocketException {
+        System.setProperty("java.net.preferIPv4Stack", "true");
+
+        List<BroadcastAddress> addresses = new ArrayList<BroadcastAddress>();
+        for (NetworkInterface networkInterface : interfaces) {
+            BroadcastAddress address = of(networkInterface);
+            if (address == null) {
+                throw new SocketException(networkInterface.getName() + " does not have a broadcast address");
+            }
+            addresses.add(address);
+        }
+        return addresses;
+    }
+
+    private static BroadcastAddress of(NetworkInterface networkInterface) throws SocketException {
+        for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+            InetAddress broadcast = interfaceAddress.getBroadcast();
+            if (broadcast == null)
+                continue;
+
+            // Use the address
+            return new BroadcastAddress(networkInterface, interfaceAddress.getAddress(), broadcast,
+                    networkInterface.getMTU());
+        }
+        return null;
+    }
+
+    NetworkInterface getInterface() {
+        return networkInterface;
+    }
+
+    InetAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    InetAddress getBroadcast() {
+        return broadcast;
+    }
+
+    /**
+     * @return the largest UDP payload that fits in one packet on the interface
+     *         without IP fragmentation
+     */
+    int getMaxDatagramSize() {
+        /* leave room for the IPv4 and UDP headers */
+        return mtu > 0 ? mtu - 28 : Transport.DEFAULT_DATAGRAM_SIZE;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.nio.CharBuffer;
+import java.util.List;
+
+/**
+ * @author Andrew Bates
+ *
+ *         BufferCodec is an optional extension of Codec for codecs that can
+ *         work on buffers supplied by the caller instead of creating a new
+ *         String for every message. The Windtalker uses these methods when a
+ *         codec implements them, and falls back to the plain Codec methods
+ *         otherwise. Any Codec can be turned into a BufferCodec with adapt.
+ */
+public interface BufferCodec extends Codec {
+    /**
+     * encode and decode give up once the buffer is this many times longer than
+     * the message, and still needs to be larger
+     */
+    public static final int MAX_EXPANSION = 64;
+
+    /**
+     * The buffer encode and decode may always grow to, however short the
+     * message
+     */
+    public static final int MAX_BUFFER_CHARS = 4096;
+
+    /**
+     * Encode the remaining characters of a message into a buffer. If the
+     * buffer does not have enough room this returns false, and the caller
+     * should try again with the whole message and a larger buffer.
+     *
+     * @param message
+     *            the clear text message
+     * @param encoded
+     *            the buffer the encoded message is written to
+     * @return true if the whole message was encoded
+     */
+    public boolean encode(CharBuffer message, CharBuffer encoded);
+
+    /**
+     * Decode the remaining characters of a message into a buffer. If the
+     * buffer does not have enough room this returns false, and the caller
+     * should try again with the whole message and a larger buffer.
+     *
+     * @param message
+     *            the encoded message
+     * @param decoded
+     *            the buffer the decoded message is written to
+     * @return true if the whole message was decoded
+     */
+    public boolean decode(CharBuffer message, CharBuffer decoded);
+
+    /**
+     * Encode many messages in one call
+     *
+     * @param messages
+     *            the clear text messages
+     * @param encoded
+     *            the list the encoded messages are added to, in the same order
+     */
+    public default void encodeAll(List<String> messages, List<String> encoded) {
+        for (String message : messages) {
+            encoded.add(encode(message));
+        }
+    }
+
+    /**
+     * Decode many messages in one call
+     *
+     * @param messages
+     *            the encoded messages
+     * @param decoded
+     *            the list the decoded messages are added to, in the same order
+     */
+    public default void decodeAll(List<String> messages, List<String> decoded) {
+        for (String message : messages) {
+            decoded.add(decode(message));
+        }
+    }
+
+    /**
+     * Get a BufferCodec for any codec. If the codec is already a BufferCodec
+     * it is returned as is, otherwise it is wrapped in an adapter that calls
+     * the String methods.
+     *
+     * @param codec
+     *            the codec to adapt
+     * @return a BufferCodec that encodes and decodes the same way as codec
+     */
+    public static BufferCodec adapt(final Codec codec) {
+        if (codec instanceof BufferCodec) {
+            return (BufferCodec) codec;
+        }
+        return new BufferCodec() {
+            @Override
+            public String encode(String message) {
+                return codec.encode(message);
+            }
+
+            @Override
+            public String decode(String message) {
+                return codec.decode(message);
+            }
+
+            @Override
+            public boolean encode(CharBuffer message, CharBuffer encoded) {
+                return copy(codec.encode(message.toString()), message, encoded);
+            }
+
+            @Override
+            public boolean decode(CharBuffer message, CharBuffer decoded) {
+                return copy(codec.decode(message.toString()), message, decoded);
+            }
+
+            private boolean copy(String result, CharBuffer message, CharBuffer target) {
+                if (result.length() > target.remaining()) {
+                    return false;
+                }
+                target.put(result);
+                message.position(message.limit());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Encode a message into a buffer, replacing the buffer with a larger one
+     * if it is too small
+     *
+     * @param codec
+     *            the codec to encode with
+     * @param message
+     *            the clear text message
+     * @param encoded
+     *            the buffer to encode into
+     * @return the buffer holding the encoded message, flipped and ready to be
+     *         read. This is either encoded or a larger replacement for it.
+     * @throws IllegalStateException
+     *             thrown if the codec still needs more room once the buffer is
+     *             MAX_EXPANSION times the length of the message
+     */
+    public static CharBuffer encode(BufferCodec codec, CharBuffer message, CharBuffer encoded) {
+        int start = message.position();
+        while (true) {
+            encoded.clear();
+            if (codec.encode(message, encoded)) {
+                encoded.flip();
+                return encoded;
+            }
+            message.position(start);
+            encoded = CharBuffer.allocate(grow(encoded, message.remaining()));
+        }
+    }
+
+    /**
+     * Decode a message into a buffer, replacing the buffer with a larger one
+     * if it is too small
+     *
+     * @param codec
+     *            the codec to decode with
+     * @param message
+     *            the encoded message
+     * @param decoded
+     *            the buffer to decode into
+     * @return the buffer holding the decoded message, flipped and ready to be
+     *         read. This is either decoded or a larger replacement for it.
+     * @throws IllegalStateException
+     *             thrown if the codec still needs more room once the buffer is
+     *             MAX_EXPANSION times the length of the message
+     */
+    public static CharBuffer decode(BufferCodec codec, CharBuffer message, CharBuffer decoded) {
+        int start = message.position();
+        while (true) {
+            decoded.clear();
+            if (codec.decode(message, decoded)) {
+                decoded.flip();
+                return decoded;
+            }
+            message.position(start);
+            decoded = CharBuffer.allocate(grow(decoded, message.remaining()));
+        }
+    }
+
+    /*
+     * The size of the next buffer to try. A codec that keeps asking for more
+     * room long after the buffer is far larger than the message would
+     * otherwise grow it until memory runs out.
+     */
+    private static int grow(CharBuffer buffer, int length) {
+        long limit = Math.max(MAX_BUFFER_CHARS, (long) length * MAX_EXPANSION);
+        if (buffer.capacity() >= limit) {
+            throw new IllegalStateException("codec still needs a larger buffer after " + buffer.capacity()
+                    + " characters for a message of " + length);
+        }
+        return (int) Math.min(limit, Math.max(16, buffer.capacity() * 2L));
+    }
+}
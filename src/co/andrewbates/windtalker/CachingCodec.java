@@ -0,0 +1,113 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.nio.CharBuffer;
+
+/**
+ * @author Andrew Bates
+ *
+ *         A Codec that answers from a CodecCache when it can and only calls
+ *         the codec it wraps for messages it has not seen. Create these with
+ *         CodecCache.wrap, which leaves Stateful codecs alone.
+ *
+ *         A CachingCodec is as thread safe as the codec it wraps. Codecs that
+ *         are not ThreadSafe should each get their own CachingCodec, which can
+ *         still share one cache.
+ */
+public final class CachingCodec implements BufferCodec {
+    private final Codec codec;
+    private final BufferCodec buffers;
+    private final CodecCache cache;
+
+    CachingCodec(Codec codec, CodecCache cache) {
+        this.codec = codec;
+        this.buffers = BufferCodec.adapt(codec);
+        this.cache = cache;
+    }
+
+    /**
+     * @return the codec that does the work on a cache miss
+     */
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return the cache the results are kept in
+     */
+    public CodecCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public String encode(String message) {
+        String result = cache.getEncoded(CharBuffer.wrap(message));
+        if (result == null) {
+            result = codec.encode(message);
+            cache.putEncoded(message, result);
+        }
+        return result;
+    }
+
+    @Override
+    public String decode(String message) {
+        String result = cache.getDecoded(message);
+        if (result == null) {
+            result = codec.decode(message);
+            cache.putDecoded(message, result);
+        }
+        return result;
+    }
+
+    /*
+     * A hit copies the cached result without creating any objects, a miss
+     * encodes with the wrapped codec and remembers the result
+     */
+    @Override
+    public boolean encode(CharBuffer message, CharBuffer encoded) {
+        String result = cache.getEncoded(message);
+        if (result != null) {
+            if (result.length() > encoded.remaining()) {
+                return false;
+            }
+            encoded.put(result);
+            message.position(message.limit());
+            return true;
+        }
+        int start = message.position();
+        int from = encoded.position();
+        if (!buffers.encode(message, encoded)) {
+            return false;
+        }
+        String clear = message.duplicate().position(start).toString();
+        cache.putEncoded(clear, encoded.duplicate().flip().position(from).toString());
+        return true;
+    }
+
+    @Override
+    public boolean decode(CharBuffer message, CharBuffer decoded) {
+        String text = message.toString();
+        String result = decode(text);
+        if (result.length() > decoded.remaining()) {
+            return false;
+        }
+        decoded.put(result);
+        message.position(message.limit());
+        return true;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * @author Andrew Bates
+ *
+ *         Transport built on non-blocking DatagramChannels. The channels are
+ *         driven by a SelectorLoop, so any number of these transports can
+ *         share a single I/O thread.
+ *
+ *         One channel bound to the wildcard address receives from every
+ *         interface. Each interface the transport broadcasts on has its own
+ *         send channel bound to that interface's address, so datagrams leave
+ *         through the right network card on a host with several of them.
+ */
+class ChannelTransport implements Transport, SelectorLoop.Endpoint {
+    /*
+     * Maximum number of datagrams read from the channel per wakeup so that one
+     * busy channel cannot starve the others on the same loop
+     */
+    private static final int MAX_READS_PER_WAKEUP = 64;
+
+    /*
+     * The sending end on one interface
+     */
+    private final class Link implements SelectorLoop.Endpoint {
+        final DatagramChannel channel;
+        final InetSocketAddress target;
+        final ConcurrentLinkedQueue<ByteBuffer> pending = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        Link(BroadcastAddress address, int port) throws IOException {
+            target = new InetSocketAddress(address.getBroadcast(), port);
+            channel = DatagramChannel.open(StandardProtocolFamily.INET);
+            try {
+                channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+                channel.bind(new InetSocketAddress(address.getLocalAddress(), 0));
+                channel.configureBlocking(false);
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        @Override
+        public void ready(SelectionKey key, ByteBuffer buffer) throws IOException {
+            if (key.isWritable()) {
+                flush();
+                if (pending.isEmpty()) {
+                    key.interestOps(0);
+                }
+            }
+        }
+
+        synchronized void send(ByteBuffer payload) throws IOException {
+            /*
+             * Only write directly if nothing is queued, otherwise datagrams
+             * could go out of order
+             */
+            if (pending.isEmpty() && channel.send(payload, target) > 0) {
+                return;
+            }
+            ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+            copy.put(payload).flip();
+            pending.add(copy);
+            loop.interest(channel, SelectionKey.OP_WRITE);
+        }
+
+        private synchronized void flush() throws IOException {
+            ByteBuffer next;
+            while ((next = pending.peek()) != null) {
+                if (channel.send(next, target) == 0) {
+                    return;
+                }
+                pending.poll();
+            }
+        }
+    }
+
+    private final SelectorLoop loop;
+    private final DatagramChannel channel;
+    private final Link[] links;
+    private final Set<InetAddress> localAddresses = new HashSet<InetAddress>();
+    private final int maxDatagramSize;
+    private Handler handler;
+
+    /**
+     * Open channels on the given port for the first interface that can
+     * broadcast and attach them to a selector loop
+     *
+     * @param loop
+     *            the loop that will drive the channels
+     * @param port
+     *            the UDP port to send and receive on
+     * @throws IOException
+     *             thrown if the channels could not be opened
+     */
+    ChannelTransport(SelectorLoop loop, int port) throws IOException {
+        this(loop, port, Collections.singletonList(BroadcastAddress.find()));
+    }
+
+    /**
+     * Open channels on the given port for several interfaces and attach them
+     * to a selector loop
+     *
+     * @param loop
+     *            the loop that will drive the channels
+     * @param port
+     *            the UDP port to send and receive on
+     * @param addresses
+     *            the interfaces to broadcast on
+     * @throws IOException
+     *             thrown if the channels could not be opened
+     */
+    ChannelTransport(SelectorLoop loop, int port, List<BroadcastAddress> addresses) throws IOException {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("there must be at least one interface");
+        }
+        this.loop = loop;
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+        channel.bind(new InetSocketAddress("0.0.0.0", port));
+        channel.configureBlocking(false);
+
+        links = new Link[addresses.size()];
+        int size = Integer.MAX_VALUE;
+        try {
+            for (int i = 0; i < links.length; i++) {
+                BroadcastAddress address = addresses.get(i);
+                links[i] = new Link(address, port);
+                localAddresses.add(address.getLocalAddress());
+                size = Math.min(size, address.getMaxDatagramSize());
+            }
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+        maxDatagramSize = size;
+    }
+
+    @Override
+    public void start(Handler handler) {
+        this.handler = handler;
+        loop.register(channel, SelectionKey.OP_READ, this);
+        for (Link link : links) {
+            loop.register(link.channel, 0, link);
+        }
+    }
+
+    @Override
+    public void ready(SelectionKey key, ByteBuffer buffer) throws IOException {
+        for (int i = 0; i < MAX_READS_PER_WAKEUP; i++) {
+            InetSocketAddress source = (InetSocketAddress) channel.receive(buffer);
+            if (source == null) {
+                break;
+            }
+            buffer.flip();
+            handler.handle(buffer, source, localAddresses.contains(source.getAddress()));
+            buffer.clear();
+        }
+    }
+
+    @Override
+    public void failed(IOException ex) {
+        handler.failed(ex);
+    }
+
+    @Override
+    public void send(ByteBuffer payload) throws IOException {
+        int position = payload.position();
+        for (Link link : links) {
+            payload.position(position);
+            link.send(payload);
+        }
+    }
+
+    @Override
+    public int getMaxDatagramSize() {
+        return maxDatagramSize;
+    }
+
+    @Override
+    public void setReceiveBufferSize(int bytes) throws IOException {
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, bytes);
+    }
+
+    @Override
+    public int getReceiveBufferSize() throws IOException {
+        return channel.getOption(StandardSocketOptions.SO_RCVBUF);
+    }
+
+    @Override
+    public void setSendBufferSize(int bytes) throws IOException {
+        for (Link link : links) {
+            link.channel.setOption(StandardSocketOptions.SO_SNDBUF, bytes);
+        }
+    }
+
+    @Override
+    public int getSendBufferSize() throws IOException {
+        return links[0].channel.getOption(StandardSocketOptions.SO_SNDBUF);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        for (Link link : links) {
+            if (link != null) {
+                link.channel.close();
+            }
+        }
+    }
+}
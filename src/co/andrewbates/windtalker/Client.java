@@ -0,0 +1,293 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.CharBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * @author Andrew Bates
+ *
+ *         A Windtalker without a user interface, for servers, bots and load
+ *         tests. It puts a Transceiver and a ReceivePipeline together the same
+ *         way Talk does, but delivers decoded messages on its own thread
+ *         instead of the Swing Event Dispatch Thread.
+ *
+ *         Decoded messages can be received either with a plain callback, or by
+ *         subscribing to the client as a Flow.Publisher. Subscribers that fall
+ *         behind slow the delivery thread down, and the receive pipeline's
+ *         back pressure policy decides what happens to the messages that back
+ *         up behind it.
+ *
+ *         Closing a client stops it receiving, then waits for the messages it
+ *         already has to be decoded and delivered before its threads stop.
+ *         The threads run on the default ExecutionModel, so with virtual
+ *         threads a program can run many clients cheaply.
+ */
+public class Client implements Flow.Publisher<Message>, Closeable {
+    /**
+     * How long close waits for received messages to be delivered
+     */
+    public static final long DEFAULT_CLOSE_TIMEOUT = 1000;
+
+    private final Codec codec;
+    private final ScheduledExecutorService scheduler;
+    private final ReceivePipeline pipeline;
+    private final Transceiver transceiver;
+    private final SubmissionPublisher<Message> publisher;
+    private final List<Consumer<? super Message>> callbacks = new CopyOnWriteArrayList<Consumer<? super Message>>();
+    private CharBuffer outgoing = CharBuffer.allocate(1024);
+    private CharBuffer encoded = CharBuffer.allocate(1024);
+
+    /**
+     * Start a client on the default engine with the default pipeline settings
+     *
+     * @param codec
+     *            the codec used to encode and decode messages
+     * @throws SocketException
+     *             thrown if the network could not be started
+     */
+    public Client(Codec codec) throws SocketException {
+        this(codec, Transceiver.Engine.getDefault());
+    }
+
+    /**
+     * Start a client on the given engine with the default pipeline settings
+     *
+     * @param codec
+     *            the codec used to encode and decode messages
+     * @param engine
+     *            the I/O engine used to send and receive datagrams
+     * @throws SocketException
+     *             thrown if the network could not be started
+     */
+    public Client(Codec codec, Transceiver.Engine engine) throws SocketException {
+        this(codec, null, engine, null, ReceivePipeline.DEFAULT_QUEUE_DEPTH, BackPressure.DROP_OLDEST, 1);
+    }
+
+    /**
+     * Start a client that decodes with several workers, each with its own
+     * codec
+     *
+     * @param codecs
+     *            creates the codecs used to encode and decode messages
+     * @param engine
+     *            the I/O engine used to send and receive datagrams
+     * @param queueDepth
+     *            the number of messages that can be waiting to be decoded
+     * @param policy
+     *            what to do when a message arrives and the queue is full
+     * @param workers
+     *            the number of decode workers
+     * @throws SocketException
+     *             thrown if the network could not be started
+     */
+    public Client(Supplier<? extends Codec> codecs, Transceiver.Engine engine, int queueDepth, BackPressure policy,
+            int workers) throws SocketException {
+        this(codecs.get(), codecs, engine, null, queueDepth, policy, workers);
+    }
+
+    /**
+     * Start a client on top of an existing transport
+     *
+     * @param codec
+     *            the codec used to encode and decode messages
+     * @param transport
+     *            the transport used to send and receive datagrams
+     * @throws SocketException
+     *             thrown if the transport could not be started
+     */
+    public Client(Codec codec, Transport transport) throws SocketException {
+        this(codec, null, null, transport, ReceivePipeline.DEFAULT_QUEUE_DEPTH, BackPressure.DROP_OLDEST, 1);
+    }
+
+    private Client(Codec codec, Supplier<? extends Codec> codecs, Transceiver.Engine engine, Transport transport,
+            int queueDepth, BackPressure policy, int workers) throws SocketException {
+        this.codec = codec;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return ExecutionModel.getDefault().newThread(r, "windtalker-client");
+            }
+        });
+        publisher = new SubmissionPublisher<Message>();
+        ReceivePipeline.Listener listener = new ReceivePipeline.Listener() {
+            @Override
+            public void deliver(List<Message> messages) {
+                Client.this.deliver(messages);
+            }
+        };
+        if (codecs == null) {
+            pipeline = new ReceivePipeline(codec, listener, queueDepth, policy, ReceivePipeline.DEFAULT_FRAME_RATE,
+                    workers, scheduler);
+        } else {
+            pipeline = new ReceivePipeline(codecs, listener, queueDepth, policy, ReceivePipeline.DEFAULT_FRAME_RATE,
+                    workers, scheduler);
+        }
+        try {
+            transceiver = transport == null ? new Transceiver(pipeline, engine) : new Transceiver(pipeline, transport);
+        } catch (SocketException ex) {
+            pipeline.close();
+            scheduler.shutdown();
+            throw ex;
+        }
+    }
+
+    private void deliver(List<Message> messages) {
+        for (Message message : messages) {
+            for (Consumer<? super Message> callback : callbacks) {
+                callback.accept(message);
+            }
+            if (publisher.hasSubscribers()) {
+                publisher.submit(message);
+            }
+        }
+    }
+
+    /**
+     * Call a function with every decoded message. Callbacks run one at a time
+     * on the client's delivery thread, in the order the messages arrived.
+     *
+     * @param callback
+     *            the function to call
+     */
+    public void onMessage(Consumer<? super Message> callback) {
+        callbacks.add(callback);
+    }
+
+    /**
+     * Stop calling a function added with onMessage
+     *
+     * @param callback
+     *            the function to remove
+     */
+    public void removeCallback(Consumer<? super Message> callback) {
+        callbacks.remove(callback);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.Flow.Publisher#subscribe(java.util.concurrent.
+     * Flow.Subscriber)
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super Message> subscriber) {
+        publisher.subscribe(subscriber);
+    }
+
+    /**
+     * Encode a message and send it to the network
+     *
+     * @param message
+     *            the clear text message
+     * @throws MessageTooLongException
+     *             thrown if the message is too long to send
+     */
+    public synchronized void send(String message) throws MessageTooLongException {
+        if (!(codec instanceof BufferCodec)) {
+            transceiver.send(codec.encode(message));
+            return;
+        }
+        if (outgoing.capacity() < message.length()) {
+            outgoing = CharBuffer.allocate(message.length());
+        }
+        outgoing.clear();
+        outgoing.put(message).flip();
+        encoded = BufferCodec.encode((BufferCodec) codec, outgoing, encoded);
+        transceiver.send(encoded);
+    }
+
+    /**
+     * Choose whether messages sent by this client are delivered to it
+     *
+     * @param ignoreSelf
+     *            true to discard our own messages
+     */
+    public void setIgnoreSelf(boolean ignoreSelf) {
+        pipeline.setIgnoreSelf(ignoreSelf);
+    }
+
+    /**
+     * @return the transceiver, for settings such as batching and rooms
+     */
+    public Transceiver getTransceiver() {
+        return transceiver;
+    }
+
+    /**
+     * @return the receive pipeline, for its statistics
+     */
+    public ReceivePipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Stop the network, deliver the messages already received, stop the
+     * decode threads and tell subscribers that no more messages are coming.
+     * Waits up to DEFAULT_CLOSE_TIMEOUT for the messages to be delivered.
+     *
+     * @throws IOException
+     *             thrown if the transport could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        close(DEFAULT_CLOSE_TIMEOUT);
+    }
+
+    /**
+     * Stop the network, deliver the messages already received, stop the
+     * decode threads and tell subscribers that no more messages are coming
+     *
+     * @param timeoutMillis
+     *            the longest time to wait for received messages to be
+     *            delivered
+     * @return true if every received message was delivered
+     * @throws IOException
+     *             thrown if the transport could not be closed
+     */
+    public boolean close(long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        boolean drained;
+        try {
+            transceiver.close();
+        } finally {
+            drained = pipeline.close(timeoutMillis);
+            scheduler.shutdown();
+            try {
+                drained &= scheduler.awaitTermination(Math.max(1, deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            publisher.close();
+        }
+        return drained;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.nio.CharBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * @author Andrew Bates
+ *
+ *         Remembers the results of encoding and decoding, so a message that is
+ *         seen again does not have to go through the codec again. In a busy
+ *         room the same messages come round often: announcements from bots,
+ *         common phrases and, most of all, our own messages coming back from
+ *         the network. Encoding a message also records how it decodes, so our
+ *         own messages are always answered from the cache.
+ *
+ *         Encode and decode results are kept in separate tables, each of them
+ *         limited both in entries and in characters and emptied least
+ *         recently used first. A cache can be shared by any number of
+ *         CachingCodecs on any number of threads.
+ */
+public final class CodecCache implements CodecCacheMBean {
+    /**
+     * The number of entries in each table unless another is given
+     */
+    public static final int DEFAULT_ENTRIES = 1024;
+
+    /**
+     * The number of characters in each table unless another is given
+     */
+    public static final long DEFAULT_CHARS = 1 << 20;
+
+    /*
+     * A least recently used table, locked on itself
+     */
+    private final class Table<K extends CharSequence> {
+        private final LinkedHashMap<K, String> entries = new LinkedHashMap<K, String>(16, 0.75f, true);
+        private long chars;
+
+        synchronized String get(K key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(K key, String value) {
+            String old = entries.put(key, value);
+            if (old != null) {
+                chars -= key.length() + old.length();
+            }
+            chars += key.length() + value.length();
+            Iterator<Map.Entry<K, String>> oldest = entries.entrySet().iterator();
+            while (entries.size() > maxEntries || chars > maxChars) {
+                Map.Entry<K, String> entry = oldest.next();
+                chars -= entry.getKey().length() + entry.getValue().length();
+                oldest.remove();
+                evictions.increment();
+            }
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized long chars() {
+            return chars;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxChars;
+    /* keyed by buffers so that encoding from a buffer can look up without a String */
+    private final Table<CharBuffer> encoded = new Table<CharBuffer>();
+    private final Table<String> decoded = new Table<String>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Create a cache with the default limits
+     */
+    public CodecCache() {
+        this(DEFAULT_ENTRIES, DEFAULT_CHARS);
+    }
+
+    /**
+     * Create a cache
+     *
+     * @param maxEntries
+     *            the most entries in each of the encode and decode tables
+     * @param maxChars
+     *            the most characters, counting both the message and its
+     *            result, in each table
+     */
+    public CodecCache(int maxEntries, long maxChars) {
+        if (maxEntries < 1 || maxChars < 1) {
+            throw new IllegalArgumentException("cache limits must be positive numbers");
+        }
+        this.maxEntries = maxEntries;
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * Wrap a codec so its results are cached. Codecs annotated with Stateful
+     * are returned as they are, including ones wrapped in a ProfilingCodec.
+     *
+     * @param codec
+     *            the codec to wrap
+     * @return a CachingCodec, or codec itself if it is Stateful
+     */
+    public Codec wrap(Codec codec) {
+        if (codec instanceof CachingCodec || isStateful(codec)) {
+            return codec;
+        }
+        return new CachingCodec(codec, this);
+    }
+
+    /*
+     * A ProfilingCodec is as stateful as the codec it times
+     */
+    private static boolean isStateful(Codec codec) {
+        if (codec instanceof ProfilingCodec) {
+            return isStateful(((ProfilingCodec) codec).getCodec());
+        }
+        return codec.getClass().isAnnotationPresent(Stateful.class);
+    }
+
+    /**
+     * Wrap every codec a factory creates, so that they all share this cache
+     *
+     * @param codecs
+     *            the factory to wrap
+     * @return a factory of wrapped codecs
+     */
+    public Supplier<Codec> wrap(final Supplier<? extends Codec> codecs) {
+        return new Supplier<Codec>() {
+            @Override
+            public Codec get() {
+                return wrap(codecs.get());
+            }
+        };
+    }
+
+    String getEncoded(CharBuffer message) {
+        return count(encoded.get(message));
+    }
+
+    String getDecoded(String message) {
+        return count(decoded.get(message));
+    }
+
+    private String count(String result) {
+        if (result == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return result;
+    }
+
+    /*
+     * Our own messages come back to us, so record how they decode as well
+     */
+    void putEncoded(String message, String result) {
+        encoded.put(CharBuffer.wrap(message), result);
+        decoded.put(result, message);
+    }
+
+    void putDecoded(String message, String result) {
+        decoded.put(message, result);
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public int getSize() {
+        return encoded.size() + decoded.size();
+    }
+
+    @Override
+    public long getChars() {
+        return encoded.chars() + decoded.chars();
+    }
+}
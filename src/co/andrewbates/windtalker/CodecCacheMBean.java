@@ -0,0 +1,54 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+/**
+ * @author Andrew Bates
+ *
+ *         The statistics a CodecCache publishes through JMX
+ */
+public interface CodecCacheMBean {
+    /**
+     * @return the number of encodes and decodes answered from the cache
+     */
+    public long getHits();
+
+    /**
+     * @return the number of encodes and decodes the codec had to do
+     */
+    public long getMisses();
+
+    /**
+     * @return the fraction of encodes and decodes answered from the cache
+     */
+    public double getHitRatio();
+
+    /**
+     * @return the number of entries thrown away to make room
+     */
+    public long getEvictions();
+
+    /**
+     * @return the number of entries in the cache
+     */
+    public int getSize();
+
+    /**
+     * @return the number of characters held by the cache
+     */
+    public long getChars();
+}
@@ -0,0 +1,354 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * @author Andrew Bates
+ *
+ *         Measures how fast a codec is. ProfilingCodecs record the time every
+ *         encode and decode takes along with the number of characters it
+ *         handled, so the profiler can report latency percentiles and
+ *         throughput for the codec actually in use. A profiler can be shared
+ *         by any number of ProfilingCodecs on any number of threads.
+ *
+ *         Before any messages have arrived the profiler can benchmark a codec
+ *         against sample chat messages. The benchmark warms the codec up until
+ *         its speed settles, so the measurement is of the code the JIT
+ *         compiler produces rather than of the interpreter.
+ */
+public final class CodecProfiler implements CodecProfilerMBean {
+    /**
+     * The number of decodes that must be recorded before they are trusted
+     * over a benchmark
+     */
+    public static final int MIN_SAMPLES = 100;
+
+    /* how long each warmup round runs, and how close two rounds must be for the speed to have settled */
+    private static final long ROUND_NANOS = 20000000;
+    private static final double SETTLED = 0.05;
+    private static final int MIN_WARMUP_ROUNDS = 3;
+
+    private static final String[] SAMPLES = {
+            "alice: hi",
+            "bob: is anyone else here?",
+            "carol: did anyone finish the homework for tomorrow? I am stuck on the last question",
+            "dave: The quick brown fox jumps over the lazy dog. Pack my box with five dozen liquor jugs. "
+                    + "How vexingly quick daft zebras jump! Sphinx of black quartz, judge my vow. "
+                    + "The five boxing wizards jump quickly, and then they all went home for dinner." };
+
+    /**
+     * The result of benchmarking a codec
+     */
+    public static final class Benchmark {
+        private final int warmupRounds;
+        private final long messages;
+        private final double encodeMeanNanos;
+        private final long encode99thPercentileNanos;
+        private final double decodeMeanNanos;
+        private final long decode99thPercentileNanos;
+        private final double decodeCharsPerSecond;
+
+        Benchmark(int warmupRounds, Histogram encode, Histogram decode, long chars) {
+            this.warmupRounds = warmupRounds;
+            messages = decode.getCount();
+            encodeMeanNanos = encode.getMean();
+            encode99thPercentileNanos = encode.getPercentile(99);
+            decodeMeanNanos = decode.getMean();
+            decode99thPercentileNanos = decode.getPercentile(99);
+            decodeCharsPerSecond = rate(chars, decode);
+        }
+
+        /**
+         * @return the number of warmup rounds run before the speed settled
+         */
+        public int getWarmupRounds() {
+            return warmupRounds;
+        }
+
+        /**
+         * @return the number of messages encoded and decoded while measuring
+         */
+        public long getMessages() {
+            return messages;
+        }
+
+        /**
+         * @return the mean time taken to encode a message, in nanoseconds
+         */
+        public double getEncodeMeanNanos() {
+            return encodeMeanNanos;
+        }
+
+        /**
+         * @return the 99th percentile of the time taken to encode a message, in
+         *         nanoseconds
+         */
+        public long getEncode99thPercentileNanos() {
+            return encode99thPercentileNanos;
+        }
+
+        /**
+         * @return the mean time taken to decode a message, in nanoseconds
+         */
+        public double getDecodeMeanNanos() {
+            return decodeMeanNanos;
+        }
+
+        /**
+         * @return the 99th percentile of the time taken to decode a message, in
+         *         nanoseconds
+         */
+        public long getDecode99thPercentileNanos() {
+            return decode99thPercentileNanos;
+        }
+
+        /**
+         * @return the number of characters decoded per second
+         */
+        public double getDecodeCharsPerSecond() {
+            return decodeCharsPerSecond;
+        }
+
+        /**
+         * @return the number of messages one codec can decode in a second
+         */
+        public double getDecodeCapacity() {
+            return decodeMeanNanos == 0 ? 0 : 1e9 / decodeMeanNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "decodes %.0f messages/s (mean %.1f \u00b5s, 99%% %.1f \u00b5s, %.0f chars/s), "
+                            + "encodes in mean %.1f \u00b5s, 99%% %.1f \u00b5s, measured over %d messages after %d warmup rounds",
+                    getDecodeCapacity(), decodeMeanNanos / 1000, decode99thPercentileNanos / 1000.0,
+                    decodeCharsPerSecond, encodeMeanNanos / 1000, encode99thPercentileNanos / 1000.0, messages,
+                    warmupRounds);
+        }
+    }
+
+    private final Histogram encodeLatency = new Histogram();
+    private final Histogram decodeLatency = new Histogram();
+    private final LongAdder encodedChars = new LongAdder();
+    private final LongAdder decodedChars = new LongAdder();
+    private volatile Benchmark benchmark;
+    /* results of the benchmark are added up here so the JIT can not throw the work away */
+    private volatile int sink;
+
+    /**
+     * Wrap a codec so that it is timed
+     *
+     * @param codec
+     *            the codec to wrap
+     * @return a ProfilingCodec that records in this profiler
+     */
+    public Codec wrap(Codec codec) {
+        if (codec instanceof ProfilingCodec && ((ProfilingCodec) codec).getProfiler() == this) {
+            return codec;
+        }
+        return new ProfilingCodec(codec, this);
+    }
+
+    /**
+     * Wrap every codec a factory creates, so that they all record in this
+     * profiler
+     *
+     * @param codecs
+     *            the factory to wrap
+     * @return a factory of wrapped codecs
+     */
+    public Supplier<Codec> wrap(final Supplier<? extends Codec> codecs) {
+        return new Supplier<Codec>() {
+            @Override
+            public Codec get() {
+                return wrap(codecs.get());
+            }
+        };
+    }
+
+    void encoded(int chars, long nanos) {
+        encodedChars.add(chars);
+        encodeLatency.record(nanos);
+    }
+
+    void decoded(int chars, long nanos) {
+        decodedChars.add(chars);
+        decodeLatency.record(nanos);
+    }
+
+    /**
+     * Benchmark a codec against sample chat messages and remember the result.
+     * The codec is run until its speed settles or the warmup time runs out,
+     * then timed. The codec should not be in use by any other thread while
+     * this runs, and should not be a ProfilingCodec or its benchmark would be
+     * recorded with the real traffic.
+     *
+     * @param codec
+     *            the codec to benchmark
+     * @param warmupMillis
+     *            the longest time to warm the codec up for
+     * @param measureMillis
+     *            how long to time the codec for
+     * @return the result, which is also returned by getBenchmark
+     * @throws RuntimeException
+     *             thrown by the codec
+     */
+    public Benchmark benchmark(Codec codec, long warmupMillis, long measureMillis) {
+        String[] encoded = new String[SAMPLES.length];
+        for (int i = 0; i < SAMPLES.length; i++) {
+            encoded[i] = codec.encode(SAMPLES[i]);
+        }
+
+        int rounds = 0;
+        double last = 0;
+        long deadline = System.nanoTime() + warmupMillis * 1000000;
+        while (System.nanoTime() < deadline) {
+            double rate = round(codec, encoded);
+            rounds++;
+            if (rounds >= MIN_WARMUP_ROUNDS && Math.abs(rate - last) <= last * SETTLED) {
+                break;
+            }
+            last = rate;
+        }
+
+        Histogram encode = new Histogram();
+        Histogram decode = new Histogram();
+        long chars = 0;
+        int results = 0;
+        deadline = System.nanoTime() + measureMillis * 1000000;
+        do {
+            for (int i = 0; i < SAMPLES.length; i++) {
+                long start = System.nanoTime();
+                results += codec.encode(SAMPLES[i]).length();
+                long middle = System.nanoTime();
+                results += codec.decode(encoded[i]).length();
+                long end = System.nanoTime();
+                encode.record(middle - start);
+                decode.record(end - middle);
+                chars += encoded[i].length();
+            }
+        } while (System.nanoTime() < deadline);
+        sink += results;
+
+        Benchmark result = new Benchmark(rounds, encode, decode, chars);
+        benchmark = result;
+        return result;
+    }
+
+    /*
+     * Encode and decode the samples for one round, returning messages per
+     * second
+     */
+    private double round(Codec codec, String[] encoded) {
+        int results = 0;
+        long messages = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < SAMPLES.length; i++) {
+                results += codec.encode(SAMPLES[i]).length();
+                results += codec.decode(encoded[i]).length();
+            }
+            messages += SAMPLES.length;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ROUND_NANOS);
+        sink += results;
+        return messages * 1e9 / elapsed;
+    }
+
+    /**
+     * @return the result of the last benchmark, or null if none has been run
+     */
+    public Benchmark getBenchmark() {
+        return benchmark;
+    }
+
+    /**
+     * @return the time taken to encode each message, in nanoseconds
+     */
+    public Histogram getEncodeLatency() {
+        return encodeLatency;
+    }
+
+    /**
+     * @return the time taken to decode each message, in nanoseconds
+     */
+    public Histogram getDecodeLatency() {
+        return decodeLatency;
+    }
+
+    private static double rate(long chars, Histogram latency) {
+        double nanos = latency.getMean() * latency.getCount();
+        return nanos == 0 ? 0 : chars * 1e9 / nanos;
+    }
+
+    @Override
+    public long getEncodes() {
+        return encodeLatency.getCount();
+    }
+
+    @Override
+    public long getDecodes() {
+        return decodeLatency.getCount();
+    }
+
+    @Override
+    public double getEncodeMeanMicros() {
+        return encodeLatency.getMean() / 1000;
+    }
+
+    @Override
+    public double getEncode99thPercentileMicros() {
+        return encodeLatency.getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getDecodeMeanMicros() {
+        return decodeLatency.getMean() / 1000;
+    }
+
+    @Override
+    public double getDecode99thPercentileMicros() {
+        return decodeLatency.getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getEncodeCharsPerSecond() {
+        return rate(encodedChars.sum(), encodeLatency);
+    }
+
+    @Override
+    public double getDecodeCharsPerSecond() {
+        return rate(decodedChars.sum(), decodeLatency);
+    }
+
+    /*
+     * Real traffic is trusted once there is enough of it, until then the
+     * benchmark is the best guess
+     */
+    @Override
+    public double getDecodeCapacity() {
+        if (decodeLatency.getCount() >= MIN_SAMPLES) {
+            return 1e9 / Math.max(1, decodeLatency.getMean());
+        }
+        Benchmark result = benchmark;
+        return result == null ? 0 : result.getDecodeCapacity();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+/**
+ * @author Andrew Bates
+ *
+ *         The statistics a CodecProfiler publishes through JMX
+ */
+public interface CodecProfilerMBean {
+    /**
+     * @return the number of messages encoded
+     */
+    public long getEncodes();
+
+    /**
+     * @return the number of messages decoded
+     */
+    public long getDecodes();
+
+    /**
+     * @return the mean time taken to encode a message, in microseconds
+     */
+    public double getEncodeMeanMicros();
+
+    /**
+     * @return the 99th percentile of the time taken to encode a message, in
+     *         microseconds
+     */
+    public double getEncode99thPercentileMicros();
+
+    /**
+     * @return the mean time taken to decode a message, in microseconds
+     */
+    public double getDecodeMeanMicros();
+
+    /**
+     * @return the 99th percentile of the time taken to decode a message, in
+     *         microseconds
+     */
+    public double getDecode99thPercentileMicros();
+
+    /**
+     * @return the number of characters the codec encodes in a second of its
+     *         own time
+     */
+    public double getEncodeCharsPerSecond();
+
+    /**
+     * @return the number of characters the codec decodes in a second of its
+     *         own time
+     */
+    public double getDecodeCharsPerSecond();
+
+    /**
+     * @return the number of messages one codec can decode in a second, or 0
+     *         if it is not known yet
+     */
+    public double getDecodeCapacity();
+}
@@ -0,0 +1,202 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * @author Andrew Bates
+ *
+ *         Compresses encoded messages with DEFLATE. A transceiver keeps one
+ *         Compressor and reuses its Deflater, Inflater and buffers for every
+ *         message, so compressing does not allocate once the buffers have
+ *         grown to fit, and the native memory zlib holds is only released by
+ *         end. The Deflater and Inflater are only created when first needed,
+ *         so a Compressor that only inflates never holds a Deflater, and the
+ *         other way around. Once ended a Compressor is closed for good: it
+ *         sends messages as they are and rejects compressed ones.
+ *
+ *         Short messages gain nothing from DEFLATE on their own, so a preset
+ *         dictionary of common chat text primes the compressor. The stream
+ *         records the checksum of the dictionary it used, and the inflater
+ *         accepts either the built in chat dictionary or the one this
+ *         compressor was given.
+ *
+ *         Compressing and inflating may happen on different threads, but each
+ *         of them must only be called by one thread at a time.
+ */
+final class Compressor {
+    /**
+     * Words and phrases common in chat, the most common last because DEFLATE
+     * finds those more cheaply
+     */
+    static final byte[] CHAT_DICTIONARY = ("http://www. https:// .com .org .net .html "
+            + "because before after again always never maybe probably actually really something anything "
+            + "everyone nobody somebody tomorrow today tonight yesterday morning afternoon evening weekend "
+            + "meeting lunch dinner class homework project code compile error exception java program "
+            + "please thanks thank you sorry okay alright great good nice cool awesome yeah yes no "
+            + "what when where which who why how is are was were will would could should can can't "
+            + "don't doesn't didn't won't isn't aren't I'm you're we're they're it's that's there's "
+            + "have has had been being do does did going to get got know think want need like just "
+            + "about with from this that there their they them then than your you the and for of to in on at "
+            + "I you we he she it a is ").getBytes(StandardCharsets.US_ASCII);
+
+    private static final long CHAT_DICTIONARY_ID = checksum(CHAT_DICTIONARY);
+
+    private final int level;
+    private Deflater deflater;
+    private Inflater inflater;
+    private boolean ended;
+    private final byte[] dictionary;
+    private final long dictionaryId;
+    private ByteBuffer inflated = ByteBuffer.allocate(4096);
+
+    /**
+     * Create a compressor
+     *
+     * @param level
+     *            the Deflater compression level
+     * @param dictionary
+     *            the preset dictionary to compress with, or null for none
+     */
+    Compressor(int level, byte[] dictionary) {
+        this.level = level;
+        this.dictionary = dictionary;
+        dictionaryId = dictionary == null ? -1 : checksum(dictionary);
+    }
+
+    private static long checksum(byte[] dictionary) {
+        Adler32 adler = new Adler32();
+        adler.update(dictionary);
+        return adler.getValue();
+    }
+
+    /**
+     * Compress a message
+     *
+     * @param message
+     *            the encoded message. Its position is only moved past the
+     *            message if it was compressed.
+     * @param out
+     *            the buffer to compress into, cleared first
+     * @return true if the message was compressed into out and is smaller
+     *         than it was, false if it should be sent as it is
+     */
+    boolean compress(ByteBuffer message, ByteBuffer out) {
+        if (ended) {
+            return false;
+        }
+        int position = message.position();
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        }
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(message);
+        deflater.finish();
+        out.clear();
+        /* stop as soon as the output is no smaller than the input */
+        out.limit(Math.min(out.capacity(), message.remaining()));
+        while (!deflater.finished() && out.hasRemaining()) {
+            deflater.deflate(out);
+        }
+        if (!deflater.finished()) {
+            message.position(position);
+            return false;
+        }
+        out.flip();
+        return true;
+    }
+
+    /**
+     * Inflate a compressed message
+     *
+     * @param compressed
+     *            the compressed message
+     * @param maxBytes
+     *            the largest message to inflate
+     * @return the inflated message, which is reused by the next call
+     * @throws DataFormatException
+     *             thrown if the message is not valid DEFLATE data, needs a
+     *             dictionary that is not known, is larger than maxBytes, or
+     *             the compressor has been ended
+     */
+    ByteBuffer inflate(ByteBuffer compressed, int maxBytes) throws DataFormatException {
+        if (ended) {
+            throw new DataFormatException("compressor has been ended");
+        }
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.reset();
+        inflater.setInput(compressed);
+        inflated.clear();
+        while (!inflater.finished()) {
+            if (!inflated.hasRemaining()) {
+                if (inflated.capacity() >= maxBytes) {
+                    throw new DataFormatException("inflated message is larger than " + maxBytes + " bytes");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(maxBytes, inflated.capacity() * 2));
+                inflated.flip();
+                larger.put(inflated);
+                inflated = larger;
+            }
+            if (inflater.inflate(inflated) == 0) {
+                if (inflater.needsDictionary()) {
+                    inflater.setDictionary(dictionary(inflater.getAdler() & 0xffffffffL));
+                } else if (inflater.needsInput()) {
+                    throw new DataFormatException("compressed message is truncated");
+                }
+            }
+        }
+        inflated.flip();
+        return inflated;
+    }
+
+    private byte[] dictionary(long id) throws DataFormatException {
+        if (id == dictionaryId) {
+            return dictionary;
+        }
+        if (id == CHAT_DICTIONARY_ID) {
+            return CHAT_DICTIONARY;
+        }
+        throw new DataFormatException("compressed with an unknown dictionary");
+    }
+
+    /**
+     * Release the native memory held by the Deflater and Inflater, if they
+     * were ever created, and close the compressor
+     */
+    void end() {
+        ended = true;
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+}
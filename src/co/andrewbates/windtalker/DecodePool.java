@@ -0,0 +1,267 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.net.InetSocketAddress;
+import java.nio.CharBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Andrew Bates
+ *
+ *         DecodePool spreads decoding over several worker threads. Messages are
+ *         numbered as they are submitted, and every message from the same
+ *         source host goes to the same worker, so messages from one sender are
+ *         always decoded in order. Finished messages are placed in a reorder
+ *         window by their number and handed out strictly in arrival order.
+ *
+ *         The workers run on platform or virtual threads depending on the
+ *         execution model. Only one thread may submit and only one thread may
+ *         poll.
+ */
+final class DecodePool {
+    /* placeholder for a message the codec failed to decode */
+    private static final Message FAILED = new Message("", (InetSocketAddress) null, false, 0);
+
+    private static final class Task {
+        final long sequence;
+        final Message message;
+
+        Task(long sequence, Message message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+    }
+
+    private final class Worker implements Runnable {
+        final Codec codec;
+        final BufferCodec bufferCodec;
+        final RingBuffer<Task> tasks;
+        final Thread thread;
+        volatile boolean waiting;
+        CharBuffer decoded = CharBuffer.allocate(1024);
+
+        Worker(Codec codec, int index, ExecutionModel model) {
+            this.codec = codec;
+            /* a cache hit already has the decoded String, decoding into a buffer would copy it */
+            this.bufferCodec = codec instanceof BufferCodec && !(codec instanceof CachingCodec) ? (BufferCodec) codec
+                    : null;
+            tasks = new RingBuffer<Task>(window.length());
+            thread = model.newThread(this, "windtalker-decoder-" + index);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Task task = tasks.poll();
+                if (task == null) {
+                    /* only stop once everything submitted has been decoded */
+                    if (!running) {
+                        return;
+                    }
+                    waiting = true;
+                    task = tasks.poll();
+                    if (task == null) {
+                        LockSupport.park(this);
+                        waiting = false;
+                        continue;
+                    }
+                    waiting = false;
+                }
+
+                Message result;
+                long start = System.nanoTime();
+                try {
+                    result = task.message.withText(decode(task.message.getText()));
+                } catch (Throwable ex) {
+                    /*
+                     * Errors too, such as a student codec that recurses
+                     * forever. A worker that died would leave its slot empty
+                     * and every later message stuck behind it.
+                     */
+                    errors.increment();
+                    result = FAILED;
+                }
+                latency.record(System.nanoTime() - start);
+                window.set((int) task.sequence & mask, result);
+            }
+        }
+
+        /*
+         * Codecs that can decode into a buffer decode into one that is reused
+         * for every message
+         */
+        private String decode(String text) {
+            if (bufferCodec == null) {
+                return codec.decode(text);
+            }
+            decoded = BufferCodec.decode(bufferCodec, CharBuffer.wrap(text), decoded);
+            return decoded.toString();
+        }
+    }
+
+    private final AtomicReferenceArray<Message> window;
+    private final int mask;
+    private final Worker[] workers;
+    private final LongAdder errors;
+    private final Histogram latency;
+    private final AtomicLong next = new AtomicLong();
+    private volatile long submitted;
+    private volatile boolean running = true;
+
+    /**
+     * Start the workers
+     *
+     * @param codecs
+     *            the codec each worker decodes with. One worker is started for
+     *            each entry, and entries may be the same thread safe codec.
+     * @param windowSize
+     *            the maximum number of messages being decoded or waiting to be
+     *            polled
+     * @param errors
+     *            counter incremented whenever a codec throws an exception
+     * @param latency
+     *            histogram the time taken to decode each message is recorded
+     *            in, in nanoseconds
+     * @param model
+     *            the kind of thread the workers run on
+     */
+    DecodePool(Codec[] codecs, int windowSize, LongAdder errors, Histogram latency, ExecutionModel model) {
+        int size = Integer.highestOneBit(windowSize);
+        if (size < windowSize) {
+            size <<= 1;
+        }
+        window = new AtomicReferenceArray<Message>(size);
+        mask = size - 1;
+        this.errors = errors;
+        this.latency = latency;
+        workers = new Worker[codecs.length];
+        for (int i = 0; i < codecs.length; i++) {
+            workers[i] = new Worker(codecs[i], i, model);
+        }
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * Hand a message to the worker for its source
+     *
+     * @param message
+     *            the encoded message
+     * @return false if the reorder window is full and the message was not
+     *         accepted
+     */
+    boolean submit(Message message) {
+        if (submitted - next.get() >= window.length()) {
+            return false;
+        }
+        Worker worker = workers[shard(message.getSource())];
+        worker.tasks.offer(new Task(submitted++, message));
+        if (worker.waiting) {
+            LockSupport.unpark(worker.thread);
+        }
+        return true;
+    }
+
+    private int shard(InetSocketAddress source) {
+        if (source == null || workers.length == 1) {
+            return 0;
+        }
+        return (source.getAddress().hashCode() & Integer.MAX_VALUE) % workers.length;
+    }
+
+    /**
+     * @return the next decoded message in arrival order, or null if it is not
+     *         ready yet
+     */
+    Message poll() {
+        while (true) {
+            long sequence = next.get();
+            int index = (int) sequence & mask;
+            Message message = window.get(index);
+            if (message == null) {
+                return null;
+            }
+            window.set(index, null);
+            next.lazySet(sequence + 1);
+            if (message != FAILED) {
+                return message;
+            }
+        }
+    }
+
+    /**
+     * @return the number of messages submitted but not yet polled
+     */
+    int pending() {
+        return (int) Math.max(0, submitted - next.get());
+    }
+
+    /**
+     * @return the maximum number of messages in flight
+     */
+    int capacity() {
+        return window.length();
+    }
+
+    /**
+     * @return the number of worker threads
+     */
+    int size() {
+        return workers.length;
+    }
+
+    /**
+     * Stop the worker threads once they have decoded everything already
+     * submitted
+     */
+    void close() {
+        running = false;
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker.thread);
+        }
+    }
+
+    /**
+     * Wait for the workers to stop after close
+     *
+     * @param timeoutMillis
+     *            the longest time to wait for all of them
+     * @return true if every worker has stopped
+     * @throws InterruptedException
+     *             thrown if the calling thread was interrupted
+     */
+    boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Worker worker : workers) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining > 0) {
+                worker.thread.join(remaining);
+            }
+        }
+        for (Worker worker : workers) {
+            if (worker.thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
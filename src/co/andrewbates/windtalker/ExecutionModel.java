@@ -0,0 +1,126 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * @author Andrew Bates
+ *
+ *         The kind of thread the Windtalker runs its receive loops and decode
+ *         workers on. Platform threads are ordinary operating system threads.
+ *         Virtual threads are cheap threads scheduled by the JVM, so a program
+ *         can run many transceivers and receive pipelines without an
+ *         operating system thread for each of their loops.
+ *
+ *         Virtual threads need Java 21. They are looked up by reflection so the
+ *         Windtalker still builds and runs on older versions, where VIRTUAL
+ *         falls back to platform threads. Threads of either kind are daemon
+ *         threads, so they never keep the program running on their own.
+ */
+public enum ExecutionModel {
+    /**
+     * Daemon operating system threads
+     */
+    PLATFORM,
+    /**
+     * Virtual threads when the JVM has them, otherwise the same as PLATFORM
+     */
+    VIRTUAL;
+
+    private static final Logger LOG = Logger.getLogger(ExecutionModel.class.getName());
+
+    /* Thread.ofVirtual and Thread.Builder's name and unstarted methods, or null */
+    private static final Method[] VIRTUAL_BUILDER = findVirtualBuilder();
+
+    private static Method[] findVirtualBuilder() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Method[] methods = new Method[] { ofVirtual, builder.getMethod("name", String.class),
+                    builder.getMethod("unstarted", Runnable.class) };
+            /* on Java 19 and 20 virtual threads are a preview that may be turned off */
+            methods[0].invoke(null);
+            return methods;
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        } catch (RuntimeException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * The model to use when none is given. Can be set with the
+     * windtalker.threads system property.
+     *
+     * @return the default execution model
+     */
+    public static ExecutionModel getDefault() {
+        return valueOf(System.getProperty("windtalker.threads", PLATFORM.name()).toUpperCase());
+    }
+
+    /**
+     * @return true if threads of this kind can be created on this JVM
+     */
+    public boolean isAvailable() {
+        return this == PLATFORM || VIRTUAL_BUILDER != null;
+    }
+
+    /**
+     * Create a thread that has not been started yet
+     *
+     * @param task
+     *            what the thread runs
+     * @param name
+     *            the thread's name
+     * @return the new thread
+     */
+    public Thread newThread(Runnable task, String name) {
+        if (this == VIRTUAL && VIRTUAL_BUILDER != null) {
+            try {
+                Object builder = VIRTUAL_BUILDER[0].invoke(null);
+                VIRTUAL_BUILDER[1].invoke(builder, name);
+                return (Thread) VIRTUAL_BUILDER[2].invoke(builder, task);
+            } catch (IllegalAccessException ex) {
+                LOG.log(Level.FINE, "Could not create a virtual thread", ex);
+            } catch (InvocationTargetException ex) {
+                LOG.log(Level.FINE, "Could not create a virtual thread", ex.getCause());
+            }
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Create and start a thread
+     *
+     * @param task
+     *            what the thread runs
+     * @param name
+     *            the thread's name
+     * @return the running thread
+     */
+    public Thread start(Runnable task, String name) {
+        Thread thread = newThread(task, name);
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Andrew Bates
+ *
+ *         Protects the receive pipeline from a host that sends too much. Each
+ *         sending host has a token bucket that refills at the rate limit and
+ *         holds up to the burst size, and every message takes a token. A host
+ *         that sends the same message over and over is also cut off after a
+ *         number of repeats, however slowly it sends them.
+ *
+ *         Hosts are looked up by address in a concurrent table. Hosts that
+ *         have not sent anything for a minute are swept out of it, and if the
+ *         table fills up, for example because someone is faking the source
+ *         address of every packet, new hosts share a single bucket until there
+ *         is room again. Our own messages are never limited.
+ */
+final class FloodGuard {
+    /**
+     * The message may be decoded
+     */
+    static final int ADMIT = 0;
+
+    /**
+     * The message was thrown away because its sender is over the rate limit
+     */
+    static final int RATE_LIMITED = 1;
+
+    /**
+     * The message was thrown away because its sender repeated it too often
+     */
+    static final int DUPLICATE = 2;
+
+    private static final int MAX_SENDERS = 4096;
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final long SWEEP_NANOS = TimeUnit.SECONDS.toNanos(10);
+    /* a message repeated after this long is not counted as part of a burst */
+    private static final long REPEAT_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /*
+     * What is known about one sending host, locked on itself
+     */
+    private static final class Sender {
+        double tokens;
+        long refilled;
+        long lastSeen;
+        String lastText;
+        int repeats;
+        long repeatsSince;
+
+        Sender(double tokens, long now) {
+            this.tokens = tokens;
+            refilled = now;
+            lastSeen = now;
+        }
+    }
+
+    private final ConcurrentHashMap<InetAddress, Sender> senders = new ConcurrentHashMap<InetAddress, Sender>();
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime() + SWEEP_NANOS);
+    private volatile Sender overflow;
+    private volatile double rate;
+    private volatile int burst;
+    private volatile int repeats;
+
+    /**
+     * Limit how fast each host may send
+     *
+     * @param messagesPerSecond
+     *            the rate a host may keep up, or 0 for no limit
+     * @param burst
+     *            the number of messages a host may send at once after being
+     *            quiet
+     */
+    void setRateLimit(double messagesPerSecond, int burst) {
+        if (messagesPerSecond < 0 || burst < 0 || (messagesPerSecond > 0 && burst < 1)) {
+            throw new IllegalArgumentException("rate limit and burst must be positive numbers");
+        }
+        this.burst = burst;
+        this.rate = messagesPerSecond;
+    }
+
+    /**
+     * Limit how many times in a row a host may send the same message
+     *
+     * @param repeats
+     *            the number of repeats allowed after the first copy, or 0 for
+     *            no limit
+     */
+    void setRepeatLimit(int repeats) {
+        if (repeats < 0) {
+            throw new IllegalArgumentException("repeat limit must not be negative");
+        }
+        this.repeats = repeats;
+    }
+
+    double getRateLimit() {
+        return rate;
+    }
+
+    int getBurst() {
+        return burst;
+    }
+
+    int getRepeatLimit() {
+        return repeats;
+    }
+
+    /**
+     * @return the number of hosts being tracked
+     */
+    int size() {
+        return senders.size();
+    }
+
+    /**
+     * Decide whether a message may go on to be decoded
+     *
+     * @param message
+     *            the encoded message
+     * @param now
+     *            the current System.nanoTime
+     * @return ADMIT, RATE_LIMITED or DUPLICATE
+     */
+    int check(Message message, long now) {
+        double rate = this.rate;
+        int repeats = this.repeats;
+        if ((rate == 0 && repeats == 0) || message.isSelf() || message.getSource() == null) {
+            return ADMIT;
+        }
+        if (now - nextSweep.get() > 0) {
+            sweep(now);
+        }
+        Sender sender = sender(message.getSource().getAddress(), now);
+        synchronized (sender) {
+            sender.lastSeen = now;
+            if (repeats > 0) {
+                String text = message.getText();
+                if (text.equals(sender.lastText) && now - sender.repeatsSince < REPEAT_WINDOW_NANOS) {
+                    if (++sender.repeats > repeats) {
+                        return DUPLICATE;
+                    }
+                } else {
+                    sender.lastText = text;
+                    sender.repeats = 0;
+                    sender.repeatsSince = now;
+                }
+            }
+            if (rate > 0) {
+                int burst = this.burst;
+                sender.tokens = Math.min(burst, sender.tokens + (now - sender.refilled) * rate / 1e9);
+                sender.refilled = now;
+                if (sender.tokens < 1) {
+                    return RATE_LIMITED;
+                }
+                sender.tokens--;
+            }
+            return ADMIT;
+        }
+    }
+
+    /*
+     * Find the host's entry, or add one if there is room
+     */
+    private Sender sender(InetAddress address, long now) {
+        Sender sender = senders.get(address);
+        if (sender != null) {
+            return sender;
+        }
+        if (senders.size() >= MAX_SENDERS) {
+            Sender shared = overflow;
+            if (shared == null) {
+                shared = new Sender(burst, now);
+                overflow = shared;
+            }
+            return shared;
+        }
+        sender = new Sender(burst, now);
+        Sender existing = senders.putIfAbsent(address, sender);
+        return existing == null ? sender : existing;
+    }
+
+    /*
+     * Forget hosts that have gone quiet. Only one thread sweeps at a time.
+     */
+    private void sweep(long now) {
+        long due = nextSweep.get();
+        if (!nextSweep.compareAndSet(due, now + SWEEP_NANOS)) {
+            return;
+        }
+        for (Iterator<Sender> i = senders.values().iterator(); i.hasNext();) {
+            Sender sender = i.next();
+            synchronized (sender) {
+                if (now - sender.lastSeen > IDLE_NANOS) {
+                    i.remove();
+                }
+            }
+        }
+        if (senders.size() < MAX_SENDERS) {
+            overflow = null;
+        }
+    }
+}
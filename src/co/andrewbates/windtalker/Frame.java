@@ -0,0 +1,119 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Andrew Bates
+ *
+ *         The layout of a Windtalker datagram. Every datagram starts with a
+ *         twelve byte header: the letters "WT", a version number, the frame
+ *         type and the id of the transceiver that sent it. The sender id is
+ *         how a transceiver recognizes its own messages, which comparing
+ *         addresses can not do reliably on a host with several interfaces.
+ *
+ *         A DATA frame holds one whole encoded message. A FRAGMENT frame holds
+ *         one piece of a message that was too large for a single datagram,
+ *         preceded by the message id, the index of the piece and the number of
+ *         pieces. A BATCH frame holds several whole messages, each preceded by
+ *         its length as an unsigned short.
+ *
+ *         A DATA or FRAGMENT frame whose type has the COMPRESSED bit set
+ *         holds a message compressed with DEFLATE, see Compressor. A
+ *         fragmented message is compressed as a whole before it is split.
+ *
+ *         Transceivers in reliable mode wrap every one of those frames in a
+ *         SEQUENCED frame, which adds the sender's sequence number and the
+ *         type of the wrapped frame after the header. A NACK frame asks a
+ *         sender to send a range of sequence numbers again: it holds the
+ *         sender id, the first sequence number and how many are missing. A
+ *         HEARTBEAT frame holds the last sequence number a sender used, so
+ *         that receivers notice when the last datagrams of a burst were lost.
+ *
+ *         Datagrams that do not start with the header come from older
+ *         Windtalkers and are treated as one whole message.
+ */
+final class Frame {
+    static final byte VERSION = 1;
+
+    static final byte DATA = 0;
+    static final byte FRAGMENT = 1;
+    static final byte BATCH = 2;
+    static final byte SEQUENCED = 3;
+    static final byte NACK = 4;
+    static final byte HEARTBEAT = 5;
+    static final byte COMPRESSED = 0x40;
+
+    static final int HEADER_SIZE = 12;
+    static final int FRAGMENT_HEADER_SIZE = HEADER_SIZE + 8;
+    static final int BATCH_ENTRY_SIZE = 2;
+    static final int SEQUENCED_HEADER_SIZE = HEADER_SIZE + 5;
+    static final int NACK_SIZE = HEADER_SIZE + 14;
+    static final int HEARTBEAT_SIZE = HEADER_SIZE + 4;
+
+    private static final byte MAGIC_W = 'W';
+    private static final byte MAGIC_T = 'T';
+
+    private Frame() {
+    }
+
+    /**
+     * Check whether a datagram starts with a frame header
+     *
+     * @param datagram
+     *            the received datagram, its position is not changed
+     * @return true if the datagram is a frame this version understands
+     */
+    static boolean isFrame(ByteBuffer datagram) {
+        int p = datagram.position();
+        return datagram.remaining() >= HEADER_SIZE && datagram.get(p) == MAGIC_W && datagram.get(p + 1) == MAGIC_T
+                && datagram.get(p + 2) == VERSION;
+    }
+
+    /**
+     * @param datagram
+     *            a datagram that starts with a frame header
+     * @return the frame type
+     */
+    static byte type(ByteBuffer datagram) {
+        return datagram.get(datagram.position() + 3);
+    }
+
+    /**
+     * @param datagram
+     *            a datagram that starts with a frame header
+     * @return the id of the transceiver that sent the frame
+     */
+    static long sender(ByteBuffer datagram) {
+        return datagram.getLong(datagram.position() + 4);
+    }
+
+    /**
+     * Write a frame header
+     *
+     * @param datagram
+     *            the buffer to write to
+     * @param type
+     *            the frame type
+     * @param sender
+     *            the id of the sending transceiver
+     */
+    static void putHeader(ByteBuffer datagram, byte type, long sender) {
+        datagram.put(MAGIC_W).put(MAGIC_T).put(VERSION).put(type).putLong(sender);
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+import javax.swing.JList;
+import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
+
+/**
+ * @author Andrew Bates
+ *
+ *         HistoryList is a drop in replacement for LogField that can hold a very
+ *         long scroll back. Lines are kept in a compact MessageStore and shown
+ *         in a JList with a fixed row height, so only the rows inside the
+ *         viewport are ever laid out or painted. Memory use grows with the
+ *         number of bytes of history and render time grows with the size of
+ *         the window, not the length of the buffer.
+ *
+ *         Every line is also added to a SearchIndex and taken out again when
+ *         it leaves the store, so the history can be searched however long it
+ *         is.
+ */
+public class HistoryList extends JScrollPane {
+    private static final long serialVersionUID = -3081914460231470361L;
+
+    private final MessageStore store;
+    private final SearchIndex index = new SearchIndex();
+    private final Model model = new Model();
+    private final JList<String> list = new JList<String>(model);
+    private final FontMetrics metrics;
+    private int width;
+
+    private List<String> pending = new ArrayList<String>();
+    private boolean flushScheduled;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /*
+     * List model that reads straight out of the message store
+     */
+    private class Model extends AbstractListModel<String> {
+        private static final long serialVersionUID = 2385064431196045913L;
+
+        @Override
+        public int getSize() {
+            return store.size();
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            return store.get(store.getFirstId() + index);
+        }
+
+        void removed(int lines) {
+            fireIntervalRemoved(this, 0, lines - 1);
+        }
+
+        void added(int lines) {
+            fireIntervalAdded(this, store.size() - lines, store.size() - 1);
+        }
+    }
+
+    /**
+     * Initializes a new history list setting the initial text as well as the
+     * width in columns and the length in lines
+     *
+     * @param text
+     *            default text to display
+     * @param columns
+     *            width of the field in text columns
+     * @param maxLength
+     *            length of the field in text lines
+     */
+    public HistoryList(String text, int columns, int maxLength) {
+        store = new MessageStore(maxLength);
+        list.setFont(new Font(Font.MONOSPACED, Font.PLAIN, list.getFont().getSize()));
+        metrics = list.getFontMetrics(list.getFont());
+        width = metrics.charWidth('m') * columns;
+
+        /*
+         * Fixing the cell size keeps the list from measuring every row to work
+         * out its preferred size
+         */
+        list.setFixedCellHeight(metrics.getHeight());
+        list.setFixedCellWidth(width);
+        setViewportView(list);
+        if (text.length() > 0) {
+            log(text);
+        }
+    }
+
+    /**
+     * Append a message to the history. The list is updated the next time the
+     * Event Dispatch Thread is free, together with any other messages logged
+     * in the meantime.
+     *
+     * @param message
+     *            the message to append
+     */
+    public synchronized void log(String message) {
+        int start = 0;
+        int end;
+        while ((end = message.indexOf('\n', start)) >= 0) {
+            pending.add(message.substring(start, end));
+            start = end + 1;
+        }
+        if (start < message.length() || start == 0) {
+            pending.add(message.substring(start));
+        }
+        if (!flushScheduled) {
+            flushScheduled = true;
+            SwingUtilities.invokeLater(flush);
+        }
+    }
+
+    /**
+     * Set the maximum length of the scroll back buffer
+     *
+     * @param maxLength
+     *            the length (in lines) of the scroll buffer
+     */
+    public void setMaxLength(final int maxLength) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (store.size() > maxLength) {
+                    int evict = store.size() - maxLength;
+                    evict(evict);
+                    model.removed(evict);
+                }
+                store.setCapacity(maxLength);
+            }
+        });
+    }
+
+    /*
+     * Move the pending lines into the store and tell the list what changed
+     */
+    private void flush() {
+        List<String> lines;
+        synchronized (this) {
+            lines = pending;
+            pending = new ArrayList<String>();
+            flushScheduled = false;
+        }
+        if (lines.isEmpty()) {
+            return;
+        }
+
+        int capacity = store.getCapacity();
+        int skip = Math.max(0, lines.size() - capacity);
+        int evict = Math.max(0, store.size() + lines.size() - skip - capacity);
+        if (evict > 0) {
+            evict(evict);
+            model.removed(evict);
+        }
+        int widest = width;
+        for (int i = skip; i < lines.size(); i++) {
+            String line = lines.get(i);
+            index.add(store.add(line), line);
+            widest = Math.max(widest, metrics.stringWidth(line));
+        }
+        if (widest > width) {
+            width = widest;
+            list.setFixedCellWidth(width);
+        }
+        model.added(lines.size() - skip);
+        list.ensureIndexIsVisible(store.size() - 1);
+    }
+
+    /*
+     * Evict the oldest lines from the store and the index together
+     */
+    private void evict(int lines) {
+        long first = store.getFirstId();
+        for (long id = first; id < first + lines; id++) {
+            index.remove(id, store.get(id));
+        }
+        store.evict(lines);
+    }
+
+    /**
+     * Find the lines that contain every word of a query. Must be called on
+     * the Event Dispatch Thread.
+     *
+     * @param query
+     *            the words to look for
+     * @param limit
+     *            the most lines to find
+     * @return the ids of the matching lines, newest first
+     */
+    long[] search(String query, int limit) {
+        return index.search(query, limit);
+    }
+
+    /**
+     * Select a line and scroll it into view. Must be called on the Event
+     * Dispatch Thread.
+     *
+     * @param id
+     *            the id of the line, as returned by search
+     * @return false if the line is no longer in the history
+     */
+    boolean show(long id) {
+        long index = id - store.getFirstId();
+        if (index < 0 || index >= store.size()) {
+            return false;
+        }
+        list.setSelectedIndex((int) index);
+        list.ensureIndexIsVisible((int) index);
+        return true;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * @author Andrew Bates
+ *
+ *         Registers Windtalker objects with the platform MBean server so their
+ *         statistics can be watched with JConsole or any other JMX client.
+ *         Failing to register only costs the statistics, so errors are logged
+ *         rather than thrown.
+ */
+final class Jmx {
+    private static final Logger LOG = Logger.getLogger(Jmx.class.getName());
+    private static final String DOMAIN = "co.andrewbates.windtalker";
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    private Jmx() {
+    }
+
+    /**
+     * Register an MBean
+     *
+     * @param mbean
+     *            a standard MBean
+     * @param type
+     *            the type part of the object name
+     * @return the name the MBean was registered under, or null if it could not
+     *         be registered
+     */
+    static ObjectName register(Object mbean, String type) {
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=" + type + ",id=" + ids.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+            return name;
+        } catch (JMException ex) {
+            LOG.log(Level.WARNING, "Could not register " + type + " with JMX", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Remove an MBean registered with register
+     *
+     * @param name
+     *            the name returned by register, may be null
+     */
+    static void unregister(ObjectName name) {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException ex) {
+            LOG.log(Level.FINE, "Could not unregister " + name, ex);
+        }
+    }
+}
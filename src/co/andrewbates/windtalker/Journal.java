@@ -0,0 +1,569 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * @author Andrew Bates
+ *
+ *         The Journal is an append-only record of every message sent and
+ *         received. Records are written into memory mapped segment files of a
+ *         fixed size. When a segment fills up a new one is started, and the
+ *         oldest segments are deleted once there are more than the configured
+ *         number.
+ *
+ *         Every segment has a small index file holding the id, timestamp and
+ *         position of every 64th record. The index lets the journal find the
+ *         last few records, or the first record after a given time, by reading
+ *         at most 64 records instead of the whole journal.
+ */
+public class Journal implements Closeable {
+    /**
+     * A record read back from the journal
+     */
+    public static final class Record {
+        private final long id;
+        private final long timestamp;
+        private final InetSocketAddress source;
+        private final boolean self;
+        private final boolean sent;
+        private final byte[] payload;
+
+        Record(long id, long timestamp, InetSocketAddress source, boolean self, boolean sent, byte[] payload) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.source = source;
+            this.self = self;
+            this.sent = sent;
+            this.payload = payload;
+        }
+
+        /**
+         * @return the position of the record in the journal
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * @return the time the message was sent or received in milliseconds
+         *         since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return the address a received message came from, or null for sent
+         *         messages
+         */
+        public InetSocketAddress getSource() {
+            return source;
+        }
+
+        /**
+         * @return true if the message was sent by this program
+         */
+        public boolean isSelf() {
+            return self;
+        }
+
+        /**
+         * @return true if this is a message we sent, false if it is one we
+         *         received
+         */
+        public boolean isSent() {
+            return sent;
+        }
+
+        /**
+         * @return the encoded message exactly as it was on the network
+         */
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        /**
+         * Convert the record to a message
+         *
+         * @param charset
+         *            the charset the payload was encoded with
+         * @return the message with its encoded text
+         */
+        public Message toMessage(Charset charset) {
+            return new Message(new String(payload, charset), source, self, timestamp);
+        }
+    }
+
+    /**
+     * Receives records read back from the journal
+     */
+    public interface Visitor {
+        /**
+         * @param record
+         *            the next record, in the order they were written
+         */
+        public void visit(Record record);
+    }
+
+    /**
+     * Size of a segment file unless another size is given
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Number of segment files kept unless another number is given
+     */
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+
+    private static final int MIN_SEGMENT_SIZE = 128 * 1024;
+    private static final int INDEX_INTERVAL = 64;
+    private static final int INDEX_ENTRY_SIZE = 20;
+    /* length, timestamp, flags, address length and port */
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final byte FLAG_SELF = 1;
+    private static final byte FLAG_SENT = 2;
+    private static final byte[] NO_ADDRESS = new byte[0];
+
+    /*
+     * One segment file and its sparse index
+     */
+    private static final class Segment {
+        final long baseId;
+        final File log;
+        final File index;
+        long[] ids = new long[16];
+        long[] timestamps = new long[16];
+        int[] positions = new int[16];
+        int entries;
+
+        Segment(File directory, long baseId) {
+            this.baseId = baseId;
+            String name = String.format("%020d", baseId);
+            log = new File(directory, name + ".log");
+            index = new File(directory, name + ".idx");
+        }
+
+        void addEntry(long id, long timestamp, int position) {
+            if (entries == ids.length) {
+                ids = Arrays.copyOf(ids, entries * 2);
+                timestamps = Arrays.copyOf(timestamps, entries * 2);
+                positions = Arrays.copyOf(positions, entries * 2);
+            }
+            ids[entries] = id;
+            timestamps[entries] = timestamp;
+            positions[entries] = position;
+            entries++;
+        }
+
+        /* the last index entry at or before the given id */
+        int entryForId(long id) {
+            int low = 0;
+            int high = entries - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (ids[middle] <= id) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+
+        void loadIndex() throws IOException {
+            if (!index.exists()) {
+                return;
+            }
+            FileChannel channel = FileChannel.open(index.toPath(), StandardOpenOption.READ);
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                }
+                buffer.flip();
+                while (buffer.remaining() >= INDEX_ENTRY_SIZE) {
+                    addEntry(buffer.getLong(), buffer.getLong(), buffer.getInt());
+                }
+            } finally {
+                channel.close();
+            }
+        }
+
+        MappedByteBuffer map(FileChannel.MapMode mode, int size) throws IOException {
+            FileChannel channel = mode == FileChannel.MapMode.READ_ONLY
+                    ? FileChannel.open(log.toPath(), StandardOpenOption.READ)
+                    : FileChannel.open(log.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                            StandardOpenOption.CREATE);
+            try {
+                return channel.map(mode, 0, mode == FileChannel.MapMode.READ_ONLY ? channel.size() : size);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private Segment active;
+    private MappedByteBuffer buffer;
+    private FileChannel indexChannel;
+    private long nextId;
+
+    /**
+     * Open the journal in a directory with the default segment size and
+     * retention
+     *
+     * @param directory
+     *            the directory holding the segment files
+     * @throws IOException
+     *             thrown if the journal could not be opened
+     */
+    public Journal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Open the journal in a directory. Existing segments are picked up and new
+     * records are appended after the last one.
+     *
+     * @param directory
+     *            the directory holding the segment files
+     * @param segmentSize
+     *            the size in bytes of each segment file
+     * @param maxSegments
+     *            the number of segment files kept before the oldest is deleted
+     * @throws IOException
+     *             thrown if the journal could not be opened
+     */
+    public Journal(File directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("segment size must be at least " + MIN_SEGMENT_SIZE + " bytes");
+        }
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("the journal must keep at least one segment");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+
+        /* only one program may write to a journal at a time */
+        lockChannel = FileChannel.open(new File(directory, "lock").toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE);
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException ex) {
+            acquired = null;
+        }
+        lock = acquired;
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Journal " + directory + " is in use by another program");
+        }
+
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (name.endsWith(".log")) {
+                try {
+                    Segment segment = new Segment(directory, Long.parseLong(name.substring(0, name.length() - 4)));
+                    segment.loadIndex();
+                    segments.put(segment.baseId, segment);
+                } catch (NumberFormatException ex) {
+                    continue;
+                }
+            }
+        }
+
+        if (segments.isEmpty()) {
+            open(new Segment(directory, 0));
+        } else {
+            open(segments.lastEntry().getValue());
+        }
+    }
+
+    /*
+     * Make a segment the one new records are written to, finding the end of
+     * the records already in it
+     */
+    private void open(Segment segment) throws IOException {
+        segments.put(segment.baseId, segment);
+        active = segment;
+        buffer = segment.map(FileChannel.MapMode.READ_WRITE, segmentSize);
+        indexChannel = FileChannel.open(segment.index.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+
+        long id = segment.baseId;
+        int position = 0;
+        if (segment.entries > 0) {
+            id = segment.ids[segment.entries - 1];
+            position = segment.positions[segment.entries - 1];
+        }
+        int length;
+        while ((length = recordLength(buffer, position)) > 0) {
+            position += length;
+            id++;
+        }
+        buffer.position(position);
+        nextId = id;
+    }
+
+    /* the length of the record at a position, or 0 if there is none */
+    private static int recordLength(ByteBuffer buffer, int position) {
+        if (position + RECORD_HEADER_SIZE > buffer.limit()) {
+            return 0;
+        }
+        int length = buffer.getInt(position);
+        if (length < RECORD_HEADER_SIZE || position + length > buffer.limit()) {
+            return 0;
+        }
+        return length;
+    }
+
+    private void roll() throws IOException {
+        buffer.force();
+        indexChannel.close();
+        open(new Segment(directory, nextId));
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.pollFirstEntry().getValue();
+            oldest.log.delete();
+            oldest.index.delete();
+        }
+    }
+
+    /**
+     * Append a message to the journal
+     *
+     * @param timestamp
+     *            the time the message was sent or received
+     * @param source
+     *            the address a received message came from, or null
+     * @param self
+     *            true if the message was sent by this program
+     * @param sent
+     *            true if we are sending the message, false if we received it
+     * @param payload
+     *            the encoded message. The buffer's position is not changed.
+     * @throws IllegalArgumentException
+     *             thrown if the record would not fit in a segment, see
+     *             getMaxPayloadSize
+     * @throws IOException
+     *             thrown if a new segment was needed and could not be created
+     */
+    public synchronized void append(long timestamp, InetSocketAddress source, boolean self, boolean sent,
+            ByteBuffer payload) throws IOException {
+        byte[] address = source == null ? NO_ADDRESS : source.getAddress().getAddress();
+        int length = RECORD_HEADER_SIZE + address.length + payload.remaining();
+        if (length > segmentSize) {
+            throw new IllegalArgumentException("record of " + length + " bytes does not fit in a segment");
+        }
+        if (buffer.position() + length > segmentSize) {
+            roll();
+        }
+
+        int position = buffer.position();
+        buffer.position(position + 4);
+        buffer.putLong(timestamp);
+        buffer.put((byte) ((self ? FLAG_SELF : 0) | (sent ? FLAG_SENT : 0)));
+        buffer.put((byte) address.length);
+        buffer.putShort((short) (source == null ? 0 : source.getPort()));
+        buffer.put(address);
+        int start = payload.position();
+        buffer.put(payload);
+        payload.position(start);
+        /* the length goes in last so a partly written record is never read */
+        buffer.putInt(position, length);
+
+        if ((nextId - active.baseId) % INDEX_INTERVAL == 0) {
+            active.addEntry(nextId, timestamp, position);
+            indexEntry.clear();
+            indexEntry.putLong(nextId).putLong(timestamp).putInt(position).flip();
+            indexChannel.write(indexEntry);
+        }
+        nextId++;
+    }
+
+    /**
+     * Read back the most recent records
+     *
+     * @param count
+     *            the maximum number of records to read
+     * @param includeSent
+     *            false to skip the records of messages we sent
+     * @param visitor
+     *            receives the records, oldest first
+     * @throws IOException
+     *             thrown if a segment could not be read
+     */
+    public synchronized void replay(int count, boolean includeSent, Visitor visitor) throws IOException {
+        final ArrayDeque<Record> found = new ArrayDeque<Record>(count);
+        long window = count;
+        while (true) {
+            found.clear();
+            long start = Math.max(getFirstId(), nextId - window);
+            read(start, includeSent, count, found);
+            if (found.size() >= count || start == getFirstId()) {
+                break;
+            }
+            /* too many sent records were skipped, look further back */
+            window *= 2;
+        }
+        for (Record record : found) {
+            visitor.visit(record);
+        }
+    }
+
+    /**
+     * Read back every record written at or after a given time
+     *
+     * @param timestamp
+     *            the time in milliseconds since the epoch
+     * @param includeSent
+     *            false to skip the records of messages we sent
+     * @param visitor
+     *            receives the records, oldest first
+     * @throws IOException
+     *             thrown if a segment could not be read
+     */
+    public synchronized void replaySince(long timestamp, boolean includeSent, Visitor visitor) throws IOException {
+        long start = getFirstId();
+        for (Segment segment : segments.descendingMap().values()) {
+            int entry = segment.entries - 1;
+            while (entry >= 0 && segment.timestamps[entry] >= timestamp) {
+                entry--;
+            }
+            if (entry >= 0) {
+                start = segment.ids[entry];
+                break;
+            }
+        }
+        ArrayDeque<Record> found = new ArrayDeque<Record>();
+        read(start, includeSent, Integer.MAX_VALUE, found);
+        for (Record record : found) {
+            if (record.getTimestamp() >= timestamp) {
+                visitor.visit(record);
+            }
+        }
+    }
+
+    /*
+     * Read the records from start to the end of the journal, keeping at most
+     * the last limit of them
+     */
+    private void read(long start, boolean includeSent, int limit, ArrayDeque<Record> found) throws IOException {
+        for (Map.Entry<Long, Segment> entry : segments.tailMap(segments.floorKey(start)).entrySet()) {
+            Segment segment = entry.getValue();
+            ByteBuffer records = segment == active ? buffer.duplicate()
+                    : segment.map(FileChannel.MapMode.READ_ONLY, 0);
+            records.limit(segment == active ? buffer.position() : records.capacity());
+
+            long id = segment.baseId;
+            int position = 0;
+            if (start > id && segment.entries > 0) {
+                int index = segment.entryForId(start);
+                id = segment.ids[index];
+                position = segment.positions[index];
+            }
+            int length;
+            while ((length = recordLength(records, position)) > 0) {
+                if (id >= start) {
+                    Record record = readRecord(records, position, length, id);
+                    if (includeSent || !record.isSent()) {
+                        if (found.size() == limit) {
+                            found.removeFirst();
+                        }
+                        found.addLast(record);
+                    }
+                }
+                position += length;
+                id++;
+            }
+        }
+    }
+
+    private static Record readRecord(ByteBuffer records, int position, int length, long id) throws IOException {
+        ByteBuffer record = records.duplicate();
+        record.limit(position + length).position(position + 4);
+        long timestamp = record.getLong();
+        byte flags = record.get();
+        byte[] address = new byte[record.get()];
+        int port = record.getShort() & 0xffff;
+        record.get(address);
+        byte[] payload = new byte[record.remaining()];
+        record.get(payload);
+        InetSocketAddress source = address.length == 0 ? null
+                : new InetSocketAddress(InetAddress.getByAddress(address), port);
+        return new Record(id, timestamp, source, (flags & FLAG_SELF) != 0, (flags & FLAG_SENT) != 0, payload);
+    }
+
+    /**
+     * @return the largest payload a single record can hold, whatever address
+     *         it came from
+     */
+    public int getMaxPayloadSize() {
+        return segmentSize - RECORD_HEADER_SIZE - 16;
+    }
+
+    /**
+     * @return the id of the oldest record still in the journal
+     */
+    public synchronized long getFirstId() {
+        return segments.firstKey();
+    }
+
+    /**
+     * @return the id the next record will be given
+     */
+    public synchronized long getNextId() {
+        return nextId;
+    }
+
+    /**
+     * Flush the active segment to disk and close the journal
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        indexChannel.close();
+        lock.release();
+        lockChannel.close();
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * @author Andrew Bates
+ *
+ *         A command line tool for soak testing a network of Windtalkers. Each
+ *         copy sends messages at a fixed rate and reports what it receives
+ *         from every copy, including itself: message and byte throughput,
+ *         messages lost along the way, and latency.
+ *
+ *         Latency of our own messages is measured with the local nanosecond
+ *         clock. Latency of messages from other hosts uses the wall clock, so
+ *         it is only as good as the clock synchronization between the hosts.
+ *
+ *         With --peers the generator does not use the real network. It runs
+ *         that many peers on a LoopbackNetwork inside one program, all sending
+ *         at the given rate, and reports what the first of them receives. The
+ *         simulated network can lose, duplicate, reorder and delay datagrams.
+ *
+ *         <pre>
+ *         java -cp windtalker.jar co.andrewbates.windtalker.LoadGenerator --rate 500 --size 100
+ *         java -cp windtalker.jar co.andrewbates.windtalker.LoadGenerator --peers 100 --rate 10 --loss 0.01
+ *         </pre>
+ */
+public class LoadGenerator {
+    private static final String MAGIC = "wt-load";
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /*
+     * Messages are passed through unchanged
+     */
+    @ThreadSafe
+    private static final class PlainCodec implements Codec {
+        @Override
+        public String decode(String message) {
+            return message;
+        }
+
+        @Override
+        public String encode(String message) {
+            return message;
+        }
+    }
+
+    /*
+     * A peer that sends messages, each numbered in the order it sent them
+     */
+    private static final class Sender {
+        final String id;
+        final Client client;
+        long sent;
+
+        Sender(String id, Client client) {
+            this.id = id;
+            this.client = client;
+        }
+    }
+
+    /*
+     * The sequence numbers seen from one sender: the highest so far, and a
+     * bitmap of which of the WINDOW before it have arrived, so a copy of a
+     * message can be told apart from one that was overtaken
+     */
+    private static final class Window {
+        static final int WINDOW = 64;
+
+        final long first;
+        long next;
+        long seen = 1;
+
+        Window(long sequence) {
+            first = sequence;
+            next = sequence + 1;
+        }
+    }
+
+    /*
+     * What was received during one reporting interval
+     */
+    private static final class Interval {
+        final Histogram selfLatency = new Histogram();
+        final Histogram remoteLatency = new Histogram();
+        final LongAdder received = new LongAdder();
+        final LongAdder other = new LongAdder();
+        final LongAdder lost = new LongAdder();
+        final LongAdder late = new LongAdder();
+        final LongAdder duplicates = new LongAdder();
+    }
+
+    private final Random random = new Random();
+    private final String id = Long.toHexString(random.nextLong());
+    private final Client client;
+    private final List<Sender> senders = new ArrayList<Sender>();
+    private LoopbackNetwork network;
+    private final Map<String, Window> windows = new HashMap<String, Window>();
+    private final Histogram selfLatency = new Histogram();
+    private final Histogram remoteLatency = new Histogram();
+    private final AtomicReference<Interval> interval = new AtomicReference<Interval>(new Interval());
+    private final LongAdder received = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder late = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+
+    private int rate = 100;
+    private int size = 64;
+    private long duration;
+    private long reportInterval = 5;
+    private long linger;
+    private Transceiver.Engine engine = Transceiver.Engine.getDefault();
+    private int peers;
+    private long seed = 1;
+    private double loss;
+    private double duplication;
+    private double reordering;
+    private long latency;
+    private long jitter;
+
+    private LoadGenerator(String[] args) throws IOException {
+        parse(args);
+        if (peers > 0) {
+            network = new LoopbackNetwork(seed);
+            network.setLoss(loss);
+            network.setDuplication(duplication);
+            network.setReordering(reordering, Math.max(1, 2 * (latency + jitter)));
+            network.setLatency(latency, jitter);
+        }
+        client = client();
+        senders.add(new Sender(id, client));
+        for (int i = 1; i < peers; i++) {
+            senders.add(new Sender(Long.toHexString(random.nextLong()), client()));
+        }
+        client.onMessage(new Consumer<Message>() {
+            @Override
+            public void accept(Message message) {
+                received(message);
+            }
+        });
+    }
+
+    private Client client() throws IOException {
+        Client peer = network == null ? new Client(new PlainCodec(), engine)
+                : new Client(new PlainCodec(), network.newTransport());
+        if (linger > 0) {
+            peer.getTransceiver().setBatching(linger, peer.getTransceiver().getMaxDatagramSize());
+        }
+        return peer;
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--help") || option.equals("-h")) {
+                usage(null);
+            }
+            if (i + 1 == args.length) {
+                usage(option + " needs a value");
+            }
+            String value = args[++i];
+            try {
+                if (option.equals("--rate")) {
+                    rate = Integer.parseInt(value);
+                } else if (option.equals("--size")) {
+                    size = Integer.parseInt(value);
+                } else if (option.equals("--duration")) {
+                    duration = Long.parseLong(value);
+                } else if (option.equals("--interval")) {
+                    reportInterval = Math.max(1, Long.parseLong(value));
+                } else if (option.equals("--linger")) {
+                    linger = Long.parseLong(value);
+                } else if (option.equals("--engine")) {
+                    engine = Transceiver.Engine.valueOf(value.toUpperCase());
+                } else if (option.equals("--peers")) {
+                    peers = Integer.parseInt(value);
+                } else if (option.equals("--seed")) {
+                    seed = Long.parseLong(value);
+                } else if (option.equals("--loss")) {
+                    loss = Double.parseDouble(value);
+                } else if (option.equals("--duplicate")) {
+                    duplication = Double.parseDouble(value);
+                } else if (option.equals("--reorder")) {
+                    reordering = Double.parseDouble(value);
+                } else if (option.equals("--latency")) {
+                    latency = Long.parseLong(value);
+                } else if (option.equals("--jitter")) {
+                    jitter = Long.parseLong(value);
+                } else {
+                    usage("unknown option " + option);
+                }
+            } catch (IllegalArgumentException ex) {
+                usage("bad value for " + option + ": " + value);
+            }
+        }
+    }
+
+    private static void usage(String error) {
+        if (error != null) {
+            System.err.println(error);
+        }
+        System.err.println("usage: LoadGenerator [options]");
+        System.err.println("  --rate N       messages to send per second, 0 only receives (100)");
+        System.err.println("  --size N       characters in each message (64)");
+        System.err.println("  --duration N   seconds to run for, 0 runs until stopped (0)");
+        System.err.println("  --interval N   seconds between reports (5)");
+        System.err.println("  --linger N     batch sent messages for up to N milliseconds (0)");
+        System.err.println("  --engine NAME  selector, blocking or multicast");
+        System.err.println("  --peers N      simulate N peers in this program instead of using the network (0)");
+        System.err.println("  --seed N       seed for the simulated network's random choices (1)");
+        System.err.println("  --loss P       chance of a simulated datagram being lost, from 0 to 1 (0)");
+        System.err.println("  --duplicate P  chance of a simulated datagram arriving twice (0)");
+        System.err.println("  --reorder P    chance of a simulated datagram being held back and overtaken (0)");
+        System.err.println("  --latency N    milliseconds every simulated datagram takes to arrive (0)");
+        System.err.println("  --jitter N     up to N more milliseconds added to each simulated datagram (0)");
+        System.exit(error == null ? 0 : 2);
+    }
+
+    /*
+     * Runs on the client's delivery thread
+     */
+    private void received(Message message) {
+        String text = message.getText();
+        Interval current = interval.get();
+        if (!text.startsWith(MAGIC + " ")) {
+            current.other.increment();
+            return;
+        }
+        int idEnd = text.indexOf(' ', MAGIC.length() + 1);
+        int sequenceEnd = idEnd < 0 ? -1 : text.indexOf(' ', idEnd + 1);
+        int nanosEnd = sequenceEnd < 0 ? -1 : text.indexOf(' ', sequenceEnd + 1);
+        int millisEnd = nanosEnd < 0 ? -1 : text.indexOf(' ', nanosEnd + 1);
+        if (millisEnd < 0) {
+            current.other.increment();
+            return;
+        }
+        String sender = text.substring(MAGIC.length() + 1, idEnd);
+        long sequence;
+        long nanos;
+        long millis;
+        try {
+            sequence = Long.parseLong(text.substring(idEnd + 1, sequenceEnd));
+            nanos = Long.parseLong(text.substring(sequenceEnd + 1, nanosEnd));
+            millis = Long.parseLong(text.substring(nanosEnd + 1, millisEnd));
+        } catch (NumberFormatException ex) {
+            current.other.increment();
+            return;
+        }
+
+        current.received.increment();
+        received.increment();
+        Window window = windows.get(sender);
+        if (window == null) {
+            windows.put(sender, new Window(sequence));
+        } else if (sequence >= window.next) {
+            long gap = sequence - window.next;
+            current.lost.add(gap);
+            lost.add(gap);
+            long shift = gap + 1;
+            window.seen = shift >= Window.WINDOW ? 1 : window.seen << shift | 1;
+            window.next = sequence + 1;
+        } else {
+            long age = window.next - 1 - sequence;
+            long bit = age < Window.WINDOW ? 1L << age : 0;
+            if ((window.seen & bit) != 0) {
+                current.duplicates.increment();
+                duplicates.increment();
+                return;
+            }
+            window.seen |= bit;
+            current.late.increment();
+            late.increment();
+            /*
+             * arrived after a later message, so it was counted as lost then,
+             * unless it is older than the first one seen or too old to tell
+             */
+            if (bit != 0 && sequence > window.first) {
+                current.lost.decrement();
+                lost.decrement();
+            }
+            return;
+        }
+
+        if (sender.equals(id)) {
+            long latency = System.nanoTime() - nanos;
+            current.selfLatency.record(latency);
+            selfLatency.record(latency);
+        } else {
+            long latency = message.getTimestamp() - millis;
+            current.remoteLatency.record(latency);
+            remoteLatency.record(latency);
+        }
+    }
+
+    private void run() throws IOException {
+        final long start = System.nanoTime();
+        Thread reporter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                report(start);
+            }
+        }, "windtalker-load-report");
+        reporter.setDaemon(true);
+        reporter.start();
+
+        long end = duration > 0 ? start + duration * NANOS_PER_SECOND : Long.MAX_VALUE;
+        StringBuilder message = new StringBuilder(size + 64);
+        if (rate <= 0) {
+            LockSupport.parkNanos(end - System.nanoTime());
+        } else {
+            long period = NANOS_PER_SECOND / rate;
+            long next = System.nanoTime();
+            while (true) {
+                long now = System.nanoTime();
+                if (now >= end) {
+                    break;
+                }
+                if (now < next) {
+                    LockSupport.parkNanos(Math.min(next, end) - now);
+                    continue;
+                }
+                for (Sender sender : senders) {
+                    send(sender, message);
+                }
+                next += period;
+                if (now - next > NANOS_PER_SECOND) {
+                    /* fell far behind, carry on from now rather than bursting */
+                    next = now;
+                }
+            }
+        }
+
+        /* give the last messages a moment to arrive */
+        LockSupport.parkNanos(NANOS_PER_SECOND / 2);
+        summary(start);
+        for (Sender sender : senders) {
+            sender.client.close();
+        }
+        if (network != null) {
+            network.close();
+        }
+    }
+
+    private void send(Sender sender, StringBuilder message) {
+        message.setLength(0);
+        message.append(MAGIC).append(' ').append(sender.id).append(' ').append(sender.sent).append(' ')
+                .append(System.nanoTime()).append(' ').append(System.currentTimeMillis()).append(' ');
+        while (message.length() < size) {
+            message.append('x');
+        }
+        try {
+            sender.client.send(message.toString());
+            sender.sent++;
+            sent.increment();
+        } catch (MessageTooLongException ex) {
+            usage(ex.getMessage());
+        }
+    }
+
+    private void report(long start) {
+        long lastBytes = 0;
+        long lastSent = 0;
+        while (true) {
+            LockSupport.parkNanos(reportInterval * NANOS_PER_SECOND);
+            Interval finished = interval.getAndSet(new Interval());
+            /* let the delivery thread finish with the old interval */
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+
+            long bytes = client.getTransceiver().getBytesIn();
+            long sentNow = sent.sum();
+            System.out.println(String.format(
+                    "%6ds sent %8.1f/s  received %8.1f/s %8.1f KB/s  lost %d  late %d  duplicates %d  other %d"
+                            + "  dropped %d  self %s  remote %s",
+                    (System.nanoTime() - start) / NANOS_PER_SECOND, (sentNow - lastSent) / (double) reportInterval,
+                    finished.received.sum() / (double) reportInterval,
+                    (bytes - lastBytes) / 1024.0 / reportInterval, finished.lost.sum(),
+                    finished.late.sum(), finished.duplicates.sum(), finished.other.sum(),
+                    client.getPipeline().getDropped(), micros(finished.selfLatency),
+                    millis(finished.remoteLatency)));
+            lastBytes = bytes;
+            lastSent = sentNow;
+        }
+    }
+
+    private void summary(long start) {
+        double seconds = (System.nanoTime() - start) / (double) NANOS_PER_SECOND;
+        long sent = this.sent.sum();
+        long received = this.received.sum();
+        System.out.println(String.format("total: %.0fs sent %d (%.1f/s)  received %d (%.1f/s)  lost %d  late %d"
+                + "  duplicates %d  dropped %d  errors %d", seconds, sent, sent / seconds, received,
+                received / seconds, lost.sum(), late.sum(), duplicates.sum(),
+                client.getPipeline().getDropped(),
+                client.getTransceiver().getErrors() + client.getPipeline().getErrors()));
+        Transceiver transceiver = client.getTransceiver();
+        if (transceiver.isReliable() || transceiver.getNacksSent() > 0) {
+            System.out.println(String.format("reliable: retransmits %d  nacks sent %d  duplicates %d  given up %d",
+                    transceiver.getRetransmits(), transceiver.getNacksSent(), transceiver.getDuplicates(),
+                    transceiver.getDatagramsLost()));
+        }
+        if (network != null) {
+            System.out.println(String.format(
+                    "simulated: %d peers  datagrams %d  delivered %d  lost %d  duplicated %d  reordered %d"
+                            + "  overflowed %d",
+                    senders.size(), network.getSent(), network.getDelivered(), network.getLost(),
+                    network.getDuplicated(), network.getReordered(), network.getOverflows()));
+        }
+        System.out.println("self latency   " + micros(selfLatency));
+        System.out.println("remote latency " + millis(remoteLatency));
+    }
+
+    private static String micros(Histogram latency) {
+        if (latency.getCount() == 0) {
+            return "-";
+        }
+        return String.format("p50 %dus p99 %dus max %dus", latency.getPercentile(50) / 1000,
+                latency.getPercentile(99) / 1000, latency.getMax() / 1000);
+    }
+
+    private static String millis(Histogram latency) {
+        if (latency.getCount() == 0) {
+            return "-";
+        }
+        return String.format("p50 %dms p99 %dms max %dms", latency.getPercentile(50), latency.getPercentile(99),
+                latency.getMax());
+    }
+
+    /**
+     * Run the load generator
+     *
+     * @param args
+     *            command line options, see --help
+     * @throws IOException
+     *             thrown if the network could not be started
+     */
+    public static void main(String[] args) throws IOException {
+        new LoadGenerator(args).run();
+    }
+}
@@ -18,7 +18,9 @@ package co.andrewbates.windtalker;
 
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
 import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 
 /**
  * @author Andrew Bates
@@ -27,12 +29,36 @@ import javax.swing.text.BadLocationException;
  *         messages. The pain will automatically add new messages to the bottom
  *         of the pane as well as automatically scroll to the bottom as new
  *         messages are added.
+ * 
+ *         The length of every line is kept in a fixed size ring, so trimming
+ *         the scroll back never has to search the document for line offsets.
+ *         Messages are collected and written to the document at most once per
+ *         pass of the Event Dispatch Thread, no matter how many arrive.
  */
 public class LogField extends JScrollPane {
     private static final long serialVersionUID = 6678508751403261470L;
     private JTextArea textArea;
     private int maxLength;
 
+    /* lengths (including the newline) of every line, oldest first */
+    private int[] lines;
+    private int head;
+    private int count;
+
+    /* the oldest documentLines lines are in the document, the rest are pending */
+    private int documentLines;
+    private int removeLength;
+    private StringBuilder pending = new StringBuilder();
+    private int pendingStart;
+    private boolean flushScheduled;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
     /**
      * Initializes a new log field setting the initial text as well as the width
      * in columns and the length in lines
@@ -45,27 +71,37 @@ public class LogField extends JScrollPane {
      *            length of the field in text lines
      */
     public LogField(String text, int columns, int maxLength) {
-        textArea = new JTextArea(text, 0, columns);
+        textArea = new JTextArea(0, columns);
         textArea.setLineWrap(false);
         textArea.setEditable(false);
         this.maxLength = maxLength;
+        lines = new int[maxLength];
         setViewportView(textArea);
+        if (text.length() > 0) {
+            log(text);
+        }
     }
 
     /**
-     * Append a message to the field
+     * Append a message to the field. The document is updated the next time
+     * the Event Dispatch Thread is free, together with any other messages
+     * logged in the meantime.
      * 
      * @param message
      *            the message to append to the log field
      */
-    public void log(String message) {
+    public synchronized void log(String message) {
         if (!message.endsWith("\n")) {
             message += "\n";
         }
-        textArea.append(message);
-        truncate();
-        textArea.setRows(textArea.getLineCount());
-        textArea.setCaretPosition(textArea.getDocument().getLength());
+        int start = 0;
+        int end;
+        while ((end = message.indexOf('\n', start)) >= 0) {
+            addLine(end + 1 - start);
+            start = end + 1;
+        }
+        pending.append(message);
+        scheduleFlush();
     }
 
     /**
@@ -74,17 +110,65 @@ public class LogField extends JScrollPane {
      * @param maxLength
      *            the length (in lines) of the scroll buffer
      */
-    public void setMaxLength(int maxLength) {
+    public synchronized void setMaxLength(int maxLength) {
+        while (count > maxLength) {
+            removeLine();
+        }
+        int[] resized = new int[maxLength];
+        for (int i = 0; i < count; i++) {
+            resized[i] = lines[(head + i) % lines.length];
+        }
+        lines = resized;
+        head = 0;
         this.maxLength = maxLength;
-        truncate();
+        scheduleFlush();
     }
 
-    private void truncate() {
-        if (textArea.getLineCount() <= maxLength) {
-            return;
+    private void addLine(int length) {
+        if (count == maxLength) {
+            removeLine();
         }
+        lines[(head + count) % lines.length] = length;
+        count++;
+    }
+
+    private void removeLine() {
+        int length = lines[head];
+        head = (head + 1) % lines.length;
+        count--;
+        if (documentLines > 0) {
+            documentLines--;
+            removeLength += length;
+        } else {
+            pendingStart += length;
+        }
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            SwingUtilities.invokeLater(flush);
+        }
+    }
+
+    /*
+     * Apply everything that has changed since the last flush to the document
+     */
+    private synchronized void flush() {
+        flushScheduled = false;
+        Document document = textArea.getDocument();
         try {
-            textArea.replaceRange(null, 0, textArea.getLineStartOffset(textArea.getLineCount() - maxLength));
+            if (documentLines == 0) {
+                /* nothing we have already displayed survives, replace it all */
+                textArea.setText(pending.substring(pendingStart));
+            } else {
+                if (removeLength > 0) {
+                    document.remove(0, removeLength);
+                }
+                if (pendingStart < pending.length()) {
+                    document.insertString(document.getLength(), pending.substring(pendingStart), null);
+                }
+            }
         } catch (BadLocationException ex) {
             /*
              * We should *NEVER* get here, so we're going to raise a runtime
@@ -92,5 +176,10 @@ public class LogField extends JScrollPane {
              */
             throw new RuntimeException(ex);
         }
+        documentLines = count;
+        removeLength = 0;
+        pending.setLength(0);
+        pendingStart = 0;
+        textArea.setCaretPosition(document.getLength());
     }
 }
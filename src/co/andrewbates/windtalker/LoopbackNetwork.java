@@ -0,0 +1,509 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Andrew Bates
+ *
+ *         A simulated network that lives inside one program. Every Transport
+ *         created by newTransport is a peer with its own address, and every
+ *         datagram a peer sends is broadcast to all of the peers, including
+ *         itself, just as on a real subnet. Any number of Clients, Talks or
+ *         Transceivers can share one network, so hundreds of peers can be run
+ *         on one computer without opening a socket.
+ *
+ *         The network can lose, duplicate, delay and reorder datagrams. What
+ *         happens to each copy of a datagram is worked out from the seed, the
+ *         peer that sent it, how many datagrams that peer had sent before it
+ *         and the peer receiving it, so the same seed always does the same
+ *         thing to the same traffic no matter how the sending threads happen
+ *         to be scheduled.
+ *
+ *         Datagrams are delivered by a few threads, each looking after some of
+ *         the peers, in order of the time they are due. A peer's handler is
+ *         only ever called by one thread at a time. Like a socket's receive
+ *         buffer, each peer can only have so many datagrams waiting for it,
+ *         and the rest are dropped when it can not keep up.
+ */
+public final class LoopbackNetwork implements Closeable {
+    /**
+     * The most datagrams waiting to be delivered to each peer unless another
+     * is given
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /* the port every peer appears to send from */
+    private static final int PORT = 5001;
+    private static final AtomicInteger networks = new AtomicInteger();
+
+    /* salts that give each decision about a datagram its own random number */
+    private static final long LOSS = 1;
+    private static final long DUPLICATE = 2;
+    private static final long REORDER = 3;
+    private static final long JITTER = 4;
+
+    /*
+     * A copy of a datagram on its way to one peer
+     */
+    private static final class Delivery implements Comparable<Delivery> {
+        final long due;
+        final long order;
+        final Peer target;
+        final Peer source;
+        final byte[] data;
+
+        Delivery(long due, long order, Peer target, Peer source, byte[] data) {
+            this.due = due;
+            this.order = order;
+            this.target = target;
+            this.source = source;
+            this.data = data;
+        }
+
+        @Override
+        public int compareTo(Delivery other) {
+            if (due != other.due) {
+                return due < other.due ? -1 : 1;
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+
+    /*
+     * A delivery thread and the datagrams waiting for the peers it looks
+     * after, locked on the queue
+     */
+    private final class Lane implements Runnable {
+        final PriorityQueue<Delivery> queue = new PriorityQueue<Delivery>();
+        final Thread thread;
+
+        Lane(int index, ExecutionModel model) {
+            thread = model.newThread(this, "windtalker-loopback-" + index);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Delivery next;
+                synchronized (queue) {
+                    while (true) {
+                        if (closed) {
+                            return;
+                        }
+                        next = queue.peek();
+                        long wait = next == null ? Long.MAX_VALUE : next.due - System.nanoTime();
+                        if (wait <= 0) {
+                            queue.poll();
+                            next.target.queued--;
+                            break;
+                        }
+                        try {
+                            if (next == null) {
+                                queue.wait();
+                            } else {
+                                TimeUnit.NANOSECONDS.timedWait(queue, wait);
+                            }
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                    }
+                }
+                Transport.Handler handler = next.target.handler;
+                if (handler == null) {
+                    continue;
+                }
+                try {
+                    handler.handle(ByteBuffer.wrap(next.data), next.source.address, next.source == next.target);
+                    delivered.increment();
+                } catch (RuntimeException ex) {
+                    handler.failed(ex);
+                }
+            }
+        }
+
+        /*
+         * Queue a copy of a datagram unless its peer already has too many
+         * waiting
+         */
+        boolean offer(Delivery delivery) {
+            synchronized (queue) {
+                if (delivery.target.queued >= capacity) {
+                    return false;
+                }
+                delivery.target.queued++;
+                queue.add(delivery);
+                if (queue.peek() == delivery) {
+                    queue.notify();
+                }
+                return true;
+            }
+        }
+
+        void close() {
+            synchronized (queue) {
+                queue.clear();
+                queue.notify();
+            }
+        }
+    }
+
+    /*
+     * One peer on the network
+     */
+    private final class Peer implements Transport {
+        final int index;
+        final InetSocketAddress address;
+        final Lane lane;
+        final AtomicLong sent = new AtomicLong();
+        volatile Handler handler;
+        /* datagrams waiting to be delivered, guarded by the lane's queue */
+        int queued;
+
+        Peer(int index, InetSocketAddress address) {
+            this.index = index;
+            this.address = address;
+            lane = lanes[index % lanes.length];
+        }
+
+        @Override
+        public void start(Handler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void send(ByteBuffer payload) throws IOException {
+            if (payload.remaining() > maxDatagramSize) {
+                throw new IOException("datagram of " + payload.remaining() + " bytes is larger than "
+                        + maxDatagramSize);
+            }
+            if (closed) {
+                throw new IOException("network is closed");
+            }
+            byte[] data = new byte[payload.remaining()];
+            payload.get(data);
+            broadcast(this, sent.getAndIncrement(), data);
+        }
+
+        @Override
+        public int getMaxDatagramSize() {
+            return maxDatagramSize;
+        }
+
+        @Override
+        public void close() {
+            handler = null;
+            peers.remove(this);
+        }
+    }
+
+    private final long seed;
+    private final int capacity;
+    private final int subnet = networks.getAndIncrement();
+    private final List<Peer> peers = new CopyOnWriteArrayList<Peer>();
+    private final Lane[] lanes;
+    private final AtomicLong order = new AtomicLong();
+    private int nextPeer;
+    private volatile boolean closed;
+
+    private volatile double loss;
+    private volatile double duplication;
+    private volatile double reordering;
+    private volatile long reorderNanos;
+    private volatile long latencyNanos;
+    private volatile long jitterNanos;
+    private volatile int maxDatagramSize = Transport.DEFAULT_DATAGRAM_SIZE;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder duplicated = new LongAdder();
+    private final LongAdder reordered = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+
+    /**
+     * Create a perfect network that delivers every datagram straight away
+     *
+     * @param seed
+     *            the seed that decides what happens to each datagram once
+     *            loss, duplication or delays are set
+     */
+    public LoopbackNetwork(long seed) {
+        this(seed, DEFAULT_CAPACITY, Runtime.getRuntime().availableProcessors(), ExecutionModel.getDefault());
+    }
+
+    /**
+     * Create a perfect network that delivers every datagram straight away
+     *
+     * @param seed
+     *            the seed that decides what happens to each datagram once
+     *            loss, duplication or delays are set
+     * @param capacity
+     *            the most datagrams that can be waiting to be delivered to each
+     *            peer
+     * @param threads
+     *            the number of threads that deliver datagrams
+     * @param model
+     *            the kind of thread datagrams are delivered on
+     */
+    public LoopbackNetwork(long seed, int capacity, int threads, ExecutionModel model) {
+        if (capacity < 1 || threads < 1) {
+            throw new IllegalArgumentException("capacity and threads must be positive numbers");
+        }
+        this.seed = seed;
+        this.capacity = capacity;
+        lanes = new Lane[threads];
+        for (int i = 0; i < threads; i++) {
+            lanes[i] = new Lane(i, model);
+        }
+        for (Lane lane : lanes) {
+            lane.thread.start();
+        }
+    }
+
+    /**
+     * Add a peer to the network
+     *
+     * @return the new peer's transport, which receives every datagram sent on
+     *         the network from the time it is started until it is closed
+     */
+    public synchronized Transport newTransport() {
+        int index = nextPeer++;
+        if (index >= 1 << 16) {
+            throw new IllegalStateException("a loopback network can have at most 65536 peers");
+        }
+        InetAddress address;
+        try {
+            address = InetAddress.getByAddress(
+                    new byte[] { 10, (byte) subnet, (byte) (index >> 8), (byte) index });
+        } catch (UnknownHostException ex) {
+            throw new IllegalStateException(ex);
+        }
+        Peer peer = new Peer(index, new InetSocketAddress(address, PORT));
+        peers.add(peer);
+        return peer;
+    }
+
+    /**
+     * @param probability
+     *            the chance, from 0 to 1, that a peer does not receive a
+     *            datagram
+     */
+    public void setLoss(double probability) {
+        loss = probability(probability);
+    }
+
+    /**
+     * @param probability
+     *            the chance, from 0 to 1, that a peer receives a datagram twice
+     */
+    public void setDuplication(double probability) {
+        duplication = probability(probability);
+    }
+
+    /**
+     * Hold some datagrams back so that datagrams sent after them overtake
+     * them
+     *
+     * @param probability
+     *            the chance, from 0 to 1, that a datagram is held back
+     * @param delayMillis
+     *            how long held back datagrams are delayed by
+     */
+    public void setReordering(double probability, long delayMillis) {
+        reordering = probability(probability);
+        reorderNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+    }
+
+    /**
+     * Delay every datagram
+     *
+     * @param latencyMillis
+     *            the time every datagram takes to arrive
+     * @param jitterMillis
+     *            up to this much more is added to each datagram at random,
+     *            which reorders datagrams sent close together
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        latencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, latencyMillis));
+        jitterNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, jitterMillis));
+    }
+
+    /**
+     * @param bytes
+     *            the largest datagram a peer may send
+     */
+    public void setMaxDatagramSize(int bytes) {
+        if (bytes < Frame.HEADER_SIZE + 1 || bytes > 65507) {
+            throw new IllegalArgumentException("datagram size must be between " + (Frame.HEADER_SIZE + 1)
+                    + " and 65507 bytes");
+        }
+        maxDatagramSize = bytes;
+    }
+
+    private static double probability(double probability) {
+        if (!(probability >= 0 && probability <= 1)) {
+            throw new IllegalArgumentException("probability must be between 0 and 1");
+        }
+        return probability;
+    }
+
+    /*
+     * Decide what happens to the copy of a datagram going to each peer and
+     * queue the copies that survive
+     */
+    private void broadcast(Peer source, long number, byte[] data) {
+        sent.increment();
+        long now = System.nanoTime();
+        long datagram = mix(seed ^ mix(((long) source.index << 40) ^ number));
+        for (Peer target : peers) {
+            long key = mix(datagram ^ target.index);
+            if (random(key, LOSS) < loss) {
+                lost.increment();
+                continue;
+            }
+            int copies = random(key, DUPLICATE) < duplication ? 2 : 1;
+            for (int copy = 0; copy < copies; copy++) {
+                long delay = latencyNanos + (long) (random(key + copy, JITTER) * jitterNanos);
+                boolean held = random(key + copy, REORDER) < reordering;
+                if (held) {
+                    delay += reorderNanos;
+                }
+                if (!target.lane.offer(new Delivery(now + delay, order.getAndIncrement(), target, source, data))) {
+                    overflows.increment();
+                    continue;
+                }
+                if (held) {
+                    reordered.increment();
+                }
+                if (copy > 0) {
+                    duplicated.increment();
+                }
+            }
+        }
+    }
+
+    /*
+     * A random number from 0 up to 1 that depends only on its arguments
+     */
+    private static double random(long key, long salt) {
+        return (mix(key + salt * 0x9e3779b97f4a7c15L) >>> 11) * 0x1.0p-53;
+    }
+
+    /*
+     * The SplitMix64 finalizer, which spreads every bit of its input over the
+     * whole result
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @return the number of datagrams sent by the peers
+     */
+    public long getSent() {
+        return sent.sum();
+    }
+
+    /**
+     * @return the number of copies of datagrams delivered to peers
+     */
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    /**
+     * @return the number of copies of datagrams lost on purpose
+     */
+    public long getLost() {
+        return lost.sum();
+    }
+
+    /**
+     * @return the number of extra copies of datagrams delivered
+     */
+    public long getDuplicated() {
+        return duplicated.sum();
+    }
+
+    /**
+     * @return the number of copies of datagrams held back to reorder them
+     */
+    public long getReordered() {
+        return reordered.sum();
+    }
+
+    /**
+     * @return the number of copies of datagrams dropped because too many were
+     *         waiting to be delivered
+     */
+    public long getOverflows() {
+        return overflows.sum();
+    }
+
+    /**
+     * @return the number of copies of datagrams waiting to be delivered
+     */
+    public int getQueued() {
+        int queued = 0;
+        for (Lane lane : lanes) {
+            synchronized (lane.queue) {
+                queued += lane.queue.size();
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Stop delivering datagrams. Datagrams still on their way are thrown away
+     * and peers can no longer send.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Lane lane : lanes) {
+            lane.close();
+        }
+        long deadline = System.currentTimeMillis() + 1000;
+        for (Lane lane : lanes) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (lane.thread != Thread.currentThread() && remaining > 0) {
+                try {
+                    lane.thread.join(remaining);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
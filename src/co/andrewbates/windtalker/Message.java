@@ -0,0 +1,98 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.net.InetSocketAddress;
+
+/**
+ * @author Andrew Bates
+ *
+ *         A message that has been received from the network along with where
+ *         and when it came from
+ */
+public final class Message {
+    private final String text;
+    private final InetSocketAddress source;
+    private final boolean self;
+    private final long timestamp;
+
+    /**
+     * Create a new message
+     *
+     * @param text
+     *            the message text
+     * @param source
+     *            the address the message was sent from, may be null if unknown
+     * @param self
+     *            true if the message was sent by this program
+     * @param timestamp
+     *            the time the message was received in milliseconds since the
+     *            epoch
+     */
+    public Message(String text, InetSocketAddress source, boolean self, long timestamp) {
+        this.text = text;
+        this.source = source;
+        this.self = self;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Create a copy of this message with different text. This is used to
+     * replace the encoded text with the decoded text.
+     *
+     * @param text
+     *            the new text
+     * @return a new message with the same source, self flag and timestamp
+     */
+    public Message withText(String text) {
+        return new Message(text, source, self, timestamp);
+    }
+
+    /**
+     * @return the message text
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return the address the message was sent from, or null if unknown
+     */
+    public InetSocketAddress getSource() {
+        return source;
+    }
+
+    /**
+     * @return true if the message was sent by this program
+     */
+    public boolean isSelf() {
+        return self;
+    }
+
+    /**
+     * @return the time the message was received in milliseconds since the
+     *         epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author Andrew Bates
+ *
+ *         A compact, fixed capacity store of text lines. Lines are encoded as
+ *         UTF-8 and packed end to end into large blocks, so a line costs its
+ *         encoded bytes plus twelve bytes of bookkeeping instead of a String
+ *         object. Every line is given an id that increases by one for each line
+ *         added. When the store is full the oldest line is evicted, and blocks
+ *         are released once every line in them has been evicted.
+ *
+ *         The store is not thread safe.
+ */
+final class MessageStore {
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int INITIAL_SLOTS = 1024;
+
+    private int capacity;
+
+    /* ring of line positions and lengths, oldest first */
+    private long[] positions;
+    private int[] lengths;
+    private int head;
+    private int count;
+    private long firstId;
+
+    /* ring of blocks of packed text, the first block has sequence firstBlock */
+    private byte[][] blocks = new byte[4][];
+    private int blockHead;
+    private int blockCount;
+    private long firstBlock;
+    private int blockOffset;
+
+    /**
+     * Create a new store
+     *
+     * @param capacity
+     *            the maximum number of lines kept
+     */
+    MessageStore(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be a positive number");
+        }
+        this.capacity = capacity;
+        int slots = Math.min(capacity, INITIAL_SLOTS);
+        positions = new long[slots];
+        lengths = new int[slots];
+    }
+
+    /**
+     * Add a line, evicting the oldest line if the store is full
+     *
+     * @param line
+     *            the line to add
+     * @return the id of the new line
+     */
+    long add(String line) {
+        if (count == capacity) {
+            evict(1);
+        } else if (count == positions.length) {
+            resize(Math.min(capacity, positions.length * 2));
+        }
+
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        if (blockCount == 0 || blockOffset + bytes.length > block(blockCount - 1).length) {
+            addBlock(new byte[Math.max(BLOCK_SIZE, bytes.length)]);
+        }
+        System.arraycopy(bytes, 0, block(blockCount - 1), blockOffset, bytes.length);
+
+        int slot = (head + count) % positions.length;
+        positions[slot] = ((firstBlock + blockCount - 1) << 32) | blockOffset;
+        lengths[slot] = bytes.length;
+        blockOffset += bytes.length;
+        count++;
+        return firstId + count - 1;
+    }
+
+    /**
+     * Get a line
+     *
+     * @param id
+     *            the id of the line
+     * @return the line, or null if it has been evicted or does not exist yet
+     */
+    String get(long id) {
+        if (id < firstId || id >= firstId + count) {
+            return null;
+        }
+        int slot = (int) ((head + (id - firstId)) % positions.length);
+        long position = positions[slot];
+        byte[] block = block((int) ((position >>> 32) - firstBlock));
+        return new String(block, (int) position, lengths[slot], StandardCharsets.UTF_8);
+    }
+
+    private byte[] block(int index) {
+        return blocks[(blockHead + index) % blocks.length];
+    }
+
+    private void addBlock(byte[] block) {
+        if (blockCount == blocks.length) {
+            byte[][] resized = new byte[blocks.length * 2][];
+            for (int i = 0; i < blockCount; i++) {
+                resized[i] = block(i);
+            }
+            blocks = resized;
+            blockHead = 0;
+        }
+        blocks[(blockHead + blockCount) % blocks.length] = block;
+        blockCount++;
+        blockOffset = 0;
+    }
+
+    /**
+     * Evict the oldest lines
+     *
+     * @param lines
+     *            the number of lines to evict
+     */
+    void evict(int lines) {
+        lines = Math.min(lines, count);
+        head = (head + lines) % positions.length;
+        count -= lines;
+        firstId += lines;
+
+        long oldestBlock = count == 0 ? firstBlock + blockCount - 1 : positions[head] >>> 32;
+        while (firstBlock < oldestBlock) {
+            blocks[blockHead] = null;
+            blockHead = (blockHead + 1) % blocks.length;
+            blockCount--;
+            firstBlock++;
+        }
+    }
+
+    /**
+     * Change the maximum number of lines kept, evicting the oldest lines if
+     * there are now too many
+     *
+     * @param capacity
+     *            the new capacity
+     */
+    void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be a positive number");
+        }
+        if (count > capacity) {
+            evict(count - capacity);
+        }
+        this.capacity = capacity;
+        resize(Math.max(count, Math.min(capacity, INITIAL_SLOTS)));
+    }
+
+    private void resize(int slots) {
+        long[] newPositions = new long[slots];
+        int[] newLengths = new int[slots];
+        for (int i = 0; i < count; i++) {
+            int slot = (head + i) % positions.length;
+            newPositions[i] = positions[slot];
+            newLengths[i] = lengths[slot];
+        }
+        positions = newPositions;
+        lengths = newLengths;
+        head = 0;
+    }
+
+    /**
+     * @return the maximum number of lines kept
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of lines in the store
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return the id of the oldest line in the store
+     */
+    long getFirstId() {
+        return firstId;
+    }
+}
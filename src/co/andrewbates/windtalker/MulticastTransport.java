@@ -0,0 +1,373 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Pattern;
+
+/**
+ * @author Andrew Bates
+ *
+ *         Transport that sends to IP multicast groups instead of the broadcast
+ *         address. Every room is a multicast group, so the network and the
+ *         kernel throw away traffic for rooms that have not been joined rather
+ *         than every program on the subnet having to receive and decode it.
+ *
+ *         A room name can be a multicast address, otherwise it is hashed to an
+ *         address in the 239.255.0.0/16 organization local scope. Each joined
+ *         room gets its own channel on the shared SelectorLoop, and one more
+ *         channel does all the sending.
+ *
+ *         Only 65536 groups are shared by every room name, so two names can
+ *         end up on the same group. Every datagram therefore starts with a 64
+ *         bit hash of the room name it was sent to, and each room's channel
+ *         throws away datagrams for any other room.
+ */
+class MulticastTransport implements RoomTransport, SelectorLoop.Endpoint {
+    private static final int MAX_READS_PER_WAKEUP = 64;
+    private static final Pattern ADDRESS = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+    private static final int ROOM_ID_SIZE = 8;
+
+    /*
+     * A datagram waiting for the send channel to become writable, along with
+     * the room it was sent to
+     */
+    private static final class Outgoing {
+        final ByteBuffer payload;
+        final InetSocketAddress target;
+
+        Outgoing(ByteBuffer payload, InetSocketAddress target) {
+            this.payload = payload;
+            this.target = target;
+        }
+    }
+
+    /*
+     * The receiving end of one joined room
+     */
+    private final class Room implements SelectorLoop.Endpoint {
+        final long id;
+        final InetSocketAddress group;
+        final DatagramChannel channel;
+        final MembershipKey membership;
+
+        Room(String name, InetSocketAddress group) throws IOException {
+            id = roomId(name);
+            this.group = group;
+            channel = DatagramChannel.open(StandardProtocolFamily.INET);
+            try {
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                if (receiveBufferSize > 0) {
+                    channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+                }
+                /*
+                 * Binding to the group address means this channel only gets
+                 * datagrams for its own group. Some systems do not allow it, in
+                 * which case the channel receives every group joined on the
+                 * port, and relies on the room id to pass on only its own.
+                 */
+                try {
+                    channel.bind(group);
+                } catch (IOException ex) {
+                    channel.bind(new InetSocketAddress("0.0.0.0", group.getPort()));
+                }
+                membership = channel.join(group.getAddress(), address.getInterface());
+                channel.configureBlocking(false);
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        @Override
+        public void ready(SelectionKey key, ByteBuffer buffer) throws IOException {
+            for (int i = 0; i < MAX_READS_PER_WAKEUP; i++) {
+                InetSocketAddress source = (InetSocketAddress) channel.receive(buffer);
+                if (source == null) {
+                    break;
+                }
+                buffer.flip();
+                /*
+                 * Only datagrams for this room, not for another room name that
+                 * hashed to the same group, or for another joined room when
+                 * the channel is bound to every group
+                 */
+                if (buffer.remaining() >= ROOM_ID_SIZE && buffer.getLong() == id) {
+                    handler.handle(buffer, source, source.getAddress().equals(address.getLocalAddress()));
+                }
+                buffer.clear();
+            }
+        }
+
+        @Override
+        public void failed(IOException ex) {
+            handler.failed(ex);
+        }
+
+        void close() throws IOException {
+            membership.drop();
+            channel.close();
+        }
+    }
+
+    private final SelectorLoop loop;
+    private final int port;
+    private final BroadcastAddress address;
+    private final DatagramChannel sender;
+    private final Map<String, Room> rooms = new LinkedHashMap<String, Room>();
+    private final ByteBuffer outgoing;
+    private final ConcurrentLinkedQueue<Outgoing> pending = new ConcurrentLinkedQueue<Outgoing>();
+    private volatile Handler handler;
+    private volatile String room;
+    private volatile InetSocketAddress target;
+    private volatile long targetId;
+    private int receiveBufferSize;
+
+    /**
+     * Open the send channel and join the first room
+     *
+     * @param loop
+     *            the loop that will drive the channels
+     * @param port
+     *            the UDP port every room uses
+     * @param room
+     *            the room to join and send to
+     * @param address
+     *            the interface to send and receive on
+     * @throws IOException
+     *             thrown if the channels could not be opened
+     */
+    MulticastTransport(SelectorLoop loop, int port, String room, BroadcastAddress address) throws IOException {
+        this.loop = loop;
+        this.port = port;
+        this.address = address;
+        sender = DatagramChannel.open(StandardProtocolFamily.INET);
+        sender.setOption(StandardSocketOptions.IP_MULTICAST_IF, address.getInterface());
+        sender.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        sender.bind(new InetSocketAddress(address.getLocalAddress(), 0));
+        sender.configureBlocking(false);
+        outgoing = ByteBuffer.allocateDirect(address.getMaxDatagramSize());
+        setRoom(room);
+    }
+
+    /**
+     * Work out the multicast group for a room
+     *
+     * @param room
+     *            a room name or a multicast address
+     * @return the multicast group address
+     * @throws IOException
+     *             thrown if the room is an address that is not a multicast
+     *             address
+     */
+    static InetAddress group(String room) throws IOException {
+        if (ADDRESS.matcher(room).matches()) {
+            InetAddress group = InetAddress.getByName(room);
+            if (!group.isMulticastAddress()) {
+                throw new IOException(room + " is not a multicast address");
+            }
+            return group;
+        }
+        int hash = room.hashCode();
+        return InetAddress.getByAddress(new byte[] { (byte) 239, (byte) 255, (byte) (hash >> 8), (byte) hash });
+    }
+
+    /**
+     * Work out the id sent at the start of every datagram for a room, a 64 bit
+     * FNV-1a hash of its name
+     *
+     * @param room
+     *            a room name or a multicast address
+     * @return the room id
+     */
+    static long roomId(String room) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < room.length(); i++) {
+            hash = (hash ^ room.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    @Override
+    public synchronized void start(Handler handler) {
+        this.handler = handler;
+        loop.register(sender, 0, this);
+        for (Room joined : rooms.values()) {
+            loop.register(joined.channel, SelectionKey.OP_READ, joined);
+        }
+    }
+
+    @Override
+    public synchronized void join(String room) throws IOException {
+        if (rooms.containsKey(room)) {
+            return;
+        }
+        Room joined = new Room(room, new InetSocketAddress(group(room), port));
+        rooms.put(room, joined);
+        if (handler != null) {
+            loop.register(joined.channel, SelectionKey.OP_READ, joined);
+        }
+    }
+
+    @Override
+    public synchronized void leave(String room) throws IOException {
+        if (room.equals(this.room)) {
+            throw new IllegalStateException("can not leave the current room");
+        }
+        Room joined = rooms.remove(room);
+        if (joined != null) {
+            joined.close();
+        }
+    }
+
+    @Override
+    public synchronized void setRoom(String room) throws IOException {
+        join(room);
+        Room joined = rooms.get(room);
+        synchronized (pending) {
+            target = joined.group;
+            targetId = joined.id;
+        }
+        this.room = room;
+    }
+
+    @Override
+    public String getRoom() {
+        return room;
+    }
+
+    @Override
+    public synchronized Set<String> getRooms() {
+        return Collections.unmodifiableSet(new LinkedHashSet<String>(rooms.keySet()));
+    }
+
+    @Override
+    public void ready(SelectionKey key, ByteBuffer buffer) throws IOException {
+        if (key.isWritable()) {
+            flush();
+            if (pending.isEmpty()) {
+                key.interestOps(0);
+            }
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer payload) throws IOException {
+        synchronized (pending) {
+            send(payload, target, targetId);
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer payload, String room) throws IOException {
+        InetSocketAddress target;
+        synchronized (this) {
+            Room joined = rooms.get(room);
+            target = joined == null ? new InetSocketAddress(group(room), port) : joined.group;
+        }
+        synchronized (pending) {
+            send(payload, target, roomId(room));
+        }
+    }
+
+    /*
+     * Called with the pending queue's lock held, which also guards the
+     * outgoing buffer
+     */
+    private void send(ByteBuffer payload, InetSocketAddress target, long id) throws IOException {
+        if (payload.remaining() > outgoing.capacity() - ROOM_ID_SIZE) {
+            throw new IOException("datagram of " + payload.remaining() + " bytes is too large to send");
+        }
+        outgoing.clear();
+        outgoing.putLong(id).put(payload).flip();
+        if (pending.isEmpty() && sender.send(outgoing, target) > 0) {
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(outgoing.remaining());
+        copy.put(outgoing).flip();
+        pending.add(new Outgoing(copy, target));
+        loop.interest(sender, SelectionKey.OP_WRITE);
+    }
+
+    private void flush() throws IOException {
+        synchronized (pending) {
+            Outgoing next;
+            while ((next = pending.peek()) != null) {
+                if (sender.send(next.payload, next.target) == 0) {
+                    return;
+                }
+                pending.poll();
+            }
+        }
+    }
+
+    @Override
+    public int getMaxDatagramSize() {
+        return address.getMaxDatagramSize() - ROOM_ID_SIZE;
+    }
+
+    /*
+     * Every room has its own receive channel, rooms joined later get the same
+     * buffer size
+     */
+    @Override
+    public synchronized void setReceiveBufferSize(int bytes) throws IOException {
+        receiveBufferSize = bytes;
+        for (Room joined : rooms.values()) {
+            joined.channel.setOption(StandardSocketOptions.SO_RCVBUF, bytes);
+        }
+    }
+
+    @Override
+    public synchronized int getReceiveBufferSize() throws IOException {
+        Room current = rooms.get(room);
+        return current == null ? 0 : current.channel.getOption(StandardSocketOptions.SO_RCVBUF);
+    }
+
+    @Override
+    public void setSendBufferSize(int bytes) throws IOException {
+        sender.setOption(StandardSocketOptions.SO_SNDBUF, bytes);
+    }
+
+    @Override
+    public int getSendBufferSize() throws IOException {
+        return sender.getOption(StandardSocketOptions.SO_SNDBUF);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Room joined : rooms.values()) {
+            joined.close();
+        }
+        rooms.clear();
+        sender.close();
+    }
+}
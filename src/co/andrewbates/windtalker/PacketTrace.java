@@ -0,0 +1,208 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * @author Andrew Bates
+ *
+ *         A sampled trace of the datagrams a transceiver sends and receives.
+ *         The network threads only copy the start of every Nth datagram into a
+ *         bounded queue, and a background thread formats and logs them, so
+ *         tracing never makes the network threads wait on the console. When
+ *         the queue is full samples are thrown away. The thread is made by the
+ *         configured ExecutionModel and stops when the trace is closed.
+ *
+ *         Tracing is turned on with the windtalker.trace system property,
+ *         which is the sampling rate: 1 traces every datagram, 100 traces one
+ *         in a hundred.
+ */
+final class PacketTrace implements Runnable {
+    private static final Logger LOG = Logger.getLogger("co.andrewbates.windtalker.trace");
+    private static final int QUEUE_DEPTH = 1024;
+    private static final int MAX_BYTES = 256;
+    private static final long IDLE_NANOS = 10000000;
+
+    private static final class Sample {
+        final long timestamp;
+        final boolean sent;
+        final InetSocketAddress peer;
+        final int length;
+        final byte[] bytes;
+
+        Sample(boolean sent, InetSocketAddress peer, ByteBuffer datagram) {
+            timestamp = System.currentTimeMillis();
+            this.sent = sent;
+            this.peer = peer;
+            length = datagram.remaining();
+            bytes = new byte[Math.min(length, MAX_BYTES)];
+            datagram.duplicate().get(bytes);
+        }
+    }
+
+    private final int rate;
+    private final AtomicLong seen = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final RingBuffer<Sample> queue = new RingBuffer<Sample>(QUEUE_DEPTH);
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Start a trace
+     *
+     * @param rate
+     *            trace one datagram in this many
+     */
+    PacketTrace(int rate) {
+        this.rate = Math.max(1, rate);
+        thread = ExecutionModel.getDefault().start(this, "windtalker-trace");
+    }
+
+    /**
+     * @return a trace with the rate set by the windtalker.trace system
+     *         property, or null if tracing is off
+     */
+    static PacketTrace fromProperties() {
+        String value = System.getProperty("windtalker.trace");
+        if (value == null || value.equalsIgnoreCase("false")) {
+            return null;
+        }
+        if (value.equalsIgnoreCase("true")) {
+            return new PacketTrace(1);
+        }
+        try {
+            int rate = Integer.parseInt(value.trim());
+            return rate > 0 ? new PacketTrace(rate) : null;
+        } catch (NumberFormatException ex) {
+            LOG.warning("windtalker.trace must be a sampling rate, not " + value);
+            return null;
+        }
+    }
+
+    /**
+     * Maybe trace a datagram. The datagram's position is not changed.
+     *
+     * @param sent
+     *            true for a datagram being sent, false for one received
+     * @param peer
+     *            the address the datagram came from, or null if it was sent
+     * @param datagram
+     *            the datagram
+     */
+    void trace(boolean sent, InetSocketAddress peer, ByteBuffer datagram) {
+        if (seen.getAndIncrement() % rate != 0) {
+            return;
+        }
+        if (!queue.offer(new Sample(sent, peer, datagram))) {
+            lost.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of samples thrown away because the queue was full
+     */
+    long getLost() {
+        return lost.get();
+    }
+
+    /**
+     * Stop the trace thread once it has logged the samples already taken
+     */
+    void close() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Sample sample = queue.poll();
+            if (sample == null) {
+                if (!running) {
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+            if (LOG.isLoggable(Level.INFO)) {
+                LOG.info(format(sample));
+            }
+        }
+    }
+
+    private static String name(byte type) {
+        String compressed = (type & Frame.COMPRESSED) != 0 ? "+COMPRESSED" : "";
+        switch (type & ~Frame.COMPRESSED) {
+        case Frame.DATA:
+            return "DATA" + compressed;
+        case Frame.FRAGMENT:
+            return "FRAGMENT" + compressed;
+        case Frame.BATCH:
+            return "BATCH";
+        case Frame.SEQUENCED:
+            return "SEQUENCED";
+        case Frame.NACK:
+            return "NACK";
+        case Frame.HEARTBEAT:
+            return "HEARTBEAT";
+        default:
+            return Byte.toString(type);
+        }
+    }
+
+    private static String format(Sample sample) {
+        StringBuilder line = new StringBuilder(64 + sample.bytes.length);
+        line.append(sample.sent ? "TX" : "RX").append(" time=").append(sample.timestamp);
+        if (sample.peer != null) {
+            line.append(" peer=").append(sample.peer.getAddress().getHostAddress()).append(':')
+                    .append(sample.peer.getPort());
+        }
+        line.append(" bytes=").append(sample.length);
+
+        ByteBuffer datagram = ByteBuffer.wrap(sample.bytes);
+        int start = 0;
+        if (Frame.isFrame(datagram)) {
+            byte type = Frame.type(datagram);
+            line.append(" frame=").append(name(type));
+            start = Frame.HEADER_SIZE;
+            if (type == Frame.SEQUENCED && sample.bytes.length >= Frame.SEQUENCED_HEADER_SIZE) {
+                type = datagram.get(Frame.SEQUENCED_HEADER_SIZE - 1);
+                line.append(" seq=").append(datagram.getInt(Frame.HEADER_SIZE)).append(" inner=").append(name(type));
+                start = Frame.SEQUENCED_HEADER_SIZE;
+            }
+            line.append(" sender=").append(Long.toHexString(Frame.sender(datagram)));
+            if (type != Frame.DATA) {
+                return line.toString();
+            }
+        } else {
+            line.append(" frame=RAW");
+        }
+        line.append(" text=\"")
+                .append(new String(sample.bytes, start, sample.bytes.length - start, StandardCharsets.UTF_8));
+        if (sample.length > sample.bytes.length) {
+            line.append("...");
+        }
+        return line.append('"').toString();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.nio.CharBuffer;
+
+/**
+ * @author Andrew Bates
+ *
+ *         A Codec that times every encode and decode done by the codec it
+ *         wraps and records the times in a CodecProfiler. Create these with
+ *         CodecProfiler.wrap.
+ *
+ *         A ProfilingCodec is as thread safe as the codec it wraps. Codecs
+ *         that are not ThreadSafe should each get their own ProfilingCodec,
+ *         which can still share one profiler.
+ */
+public final class ProfilingCodec implements BufferCodec {
+    private final Codec codec;
+    private final BufferCodec buffers;
+    private final CodecProfiler profiler;
+
+    ProfilingCodec(Codec codec, CodecProfiler profiler) {
+        this.codec = codec;
+        this.buffers = BufferCodec.adapt(codec);
+        this.profiler = profiler;
+    }
+
+    /**
+     * @return the codec being timed
+     */
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return the profiler the times are recorded in
+     */
+    public CodecProfiler getProfiler() {
+        return profiler;
+    }
+
+    @Override
+    public String encode(String message) {
+        long start = System.nanoTime();
+        String result = codec.encode(message);
+        profiler.encoded(message.length(), System.nanoTime() - start);
+        return result;
+    }
+
+    @Override
+    public String decode(String message) {
+        long start = System.nanoTime();
+        String result = codec.decode(message);
+        profiler.decoded(message.length(), System.nanoTime() - start);
+        return result;
+    }
+
+    /*
+     * Only successful calls are recorded, a call that ran out of room is
+     * repeated by the caller with a bigger buffer
+     */
+    @Override
+    public boolean encode(CharBuffer message, CharBuffer encoded) {
+        int length = message.remaining();
+        long start = System.nanoTime();
+        if (!buffers.encode(message, encoded)) {
+            return false;
+        }
+        profiler.encoded(length, System.nanoTime() - start);
+        return true;
+    }
+
+    @Override
+    public boolean decode(CharBuffer message, CharBuffer decoded) {
+        int length = message.remaining();
+        long start = System.nanoTime();
+        if (!buffers.decode(message, decoded)) {
+            return false;
+        }
+        profiler.decoded(length, System.nanoTime() - start);
+        return true;
+    }
+}
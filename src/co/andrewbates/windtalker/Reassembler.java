@@ -0,0 +1,200 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * @author Andrew Bates
+ *
+ *         Puts fragmented messages back together. Partly received messages are
+ *         kept in a table with a fixed number of entries. When the table is
+ *         full the oldest entry is thrown away, and entries that have not been
+ *         completed within the timeout are thrown away too, so a lost fragment
+ *         never holds memory for long.
+ *
+ *         The reassembler is not thread safe.
+ */
+final class Reassembler {
+    private static final class Key {
+        final long sender;
+        final int id;
+
+        Key(long sender, int id) {
+            this.sender = sender;
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(sender) * 31 + id;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return id == key.id && sender == key.sender;
+        }
+    }
+
+    private static final class Partial {
+        final byte[][] fragments;
+        final long started;
+        int received;
+        int length;
+
+        Partial(int count, long started) {
+            fragments = new byte[count][];
+            this.started = started;
+        }
+    }
+
+    private final LinkedHashMap<Key, Partial> partials = new LinkedHashMap<Key, Partial>();
+    private final int maxEntries;
+    private final long timeout;
+    private int maxMessageBytes;
+    private ByteBuffer message = ByteBuffer.allocate(4096);
+    private long expired;
+    private long evicted;
+
+    /**
+     * Create a reassembler
+     *
+     * @param maxEntries
+     *            the maximum number of messages being reassembled at once
+     * @param timeout
+     *            milliseconds allowed between the first fragment of a message
+     *            and the last
+     * @param maxMessageBytes
+     *            the largest message that will be reassembled
+     */
+    Reassembler(int maxEntries, long timeout, int maxMessageBytes) {
+        this.maxEntries = maxEntries;
+        this.timeout = timeout;
+        this.maxMessageBytes = maxMessageBytes;
+    }
+
+    /**
+     * Add a fragment
+     *
+     * @param sender
+     *            the id of the transceiver that sent the fragment
+     * @param fragment
+     *            the fragment frame, positioned after the frame header
+     * @param now
+     *            the current time in milliseconds
+     * @return the whole message if this was its last missing fragment,
+     *         otherwise null. The buffer is reused by the next call.
+     */
+    ByteBuffer add(long sender, ByteBuffer fragment, long now) {
+        expire(now);
+        if (fragment.remaining() < Frame.FRAGMENT_HEADER_SIZE - Frame.HEADER_SIZE) {
+            return null;
+        }
+        int id = fragment.getInt();
+        int index = fragment.getShort() & 0xffff;
+        int count = fragment.getShort() & 0xffff;
+        if (index >= count || (long) (count - 1) * fragment.remaining() > maxMessageBytes) {
+            return null;
+        }
+
+        Key key = new Key(sender, id);
+        Partial partial = partials.get(key);
+        if (partial == null) {
+            if (partials.size() >= maxEntries) {
+                Iterator<Partial> oldest = partials.values().iterator();
+                oldest.next();
+                oldest.remove();
+                evicted++;
+            }
+            partial = new Partial(count, now);
+            partials.put(key, partial);
+        }
+        if (partial.fragments.length != count || partial.fragments[index] != null) {
+            return null;
+        }
+
+        byte[] bytes = new byte[fragment.remaining()];
+        fragment.get(bytes);
+        partial.fragments[index] = bytes;
+        partial.received++;
+        partial.length += bytes.length;
+        if (partial.length > maxMessageBytes) {
+            partials.remove(key);
+            return null;
+        }
+        if (partial.received < count) {
+            return null;
+        }
+
+        partials.remove(key);
+        if (message.capacity() < partial.length) {
+            message = ByteBuffer.allocate(partial.length);
+        }
+        message.clear();
+        for (byte[] piece : partial.fragments) {
+            message.put(piece);
+        }
+        message.flip();
+        return message;
+    }
+
+    private void expire(long now) {
+        Iterator<Partial> oldest = partials.values().iterator();
+        while (oldest.hasNext()) {
+            if (now - oldest.next().started < timeout) {
+                return;
+            }
+            oldest.remove();
+            expired++;
+        }
+    }
+
+    /**
+     * @param maxMessageBytes
+     *            the largest message that will be reassembled
+     */
+    void setMaxMessageBytes(int maxMessageBytes) {
+        this.maxMessageBytes = maxMessageBytes;
+    }
+
+    /**
+     * @return the number of messages being reassembled
+     */
+    int size() {
+        return partials.size();
+    }
+
+    /**
+     * @return the number of messages given up on because they timed out
+     */
+    long getExpired() {
+        return expired;
+    }
+
+    /**
+     * @return the number of messages given up on because the table was full
+     */
+    long getEvicted() {
+        return evicted;
+    }
+}
@@ -0,0 +1,662 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * @author Andrew Bates
+ *
+ *         ReceivePipeline moves received messages from the network thread to
+ *         the Swing Event Dispatch Thread in three stages:
+ *
+ *         <ol>
+ *         <li>The network thread only places the raw message into a bounded
+ *         queue. What happens when that queue is full is decided by the
+ *         BackPressure policy.</li>
+ *         <li>A dispatch thread hands each message to a pool of decode workers
+ *         that run the Codec. Messages from one sender always go to the same
+ *         worker, and the results are put back in arrival order.</li>
+ *         <li>A Swing timer drains the decoded messages onto the Event
+ *         Dispatch Thread in batches, no more often than the frame rate.
+ *         Programs without a user interface can give the pipeline a scheduler
+ *         to deliver the batches on instead.</li>
+ *         </ol>
+ *
+ *         This way a slow codec or a burst of packets never holds up the
+ *         socket, and the UI is updated once per frame instead of once per
+ *         message. A FloodGuard can also be switched on to throw away messages
+ *         from any host that sends too fast or repeats itself, before they
+ *         reach the queue.
+ *
+ *         The pipeline's counters and the time taken to decode each message
+ *         are published through JMX.
+ */
+public class ReceivePipeline implements Receiver, ReceivePipelineMBean {
+    /**
+     * Receives batches of decoded messages on the Event Dispatch Thread
+     */
+    public interface Listener {
+        /**
+         * Deliver a batch of decoded messages. The list is reused for the next
+         * batch, so it must not be kept after this method returns.
+         *
+         * @param messages
+         *            the decoded messages in the order they were received
+         */
+        public void deliver(List<Message> messages);
+    }
+
+    /**
+     * Number of messages the receive queue holds by default
+     */
+    public static final int DEFAULT_QUEUE_DEPTH = 1024;
+
+    /**
+     * Maximum number of batches delivered to the UI per second by default
+     */
+    public static final int DEFAULT_FRAME_RATE = 30;
+
+    private static final Logger LOG = Logger.getLogger(ReceivePipeline.class.getName());
+    private static final long DECODE_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final Listener listener;
+    private final BackPressure policy;
+    private final RingBuffer<Message> raw;
+    private final DecodePool decoders;
+    private final Thread dispatchThread;
+    private final Timer frameTimer;
+    private final ScheduledFuture<?> frameTask;
+    private final List<Message> batch = new ArrayList<Message>();
+    private final FloodGuard guard = new FloodGuard();
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder repeatsDropped = new LongAdder();
+    private final Histogram decodeLatency = new Histogram();
+    private final ObjectName mbeanName;
+
+    private volatile boolean running = true;
+    private volatile boolean closing;
+    private volatile boolean dispatcherWaiting;
+    private volatile boolean ignoreSelf;
+
+    /**
+     * Create a pipeline with the default queue depth, back pressure policy and
+     * frame rate
+     *
+     * @param codec
+     *            the codec used to decode received messages
+     * @param listener
+     *            the listener that batches of decoded messages are delivered to
+     */
+    public ReceivePipeline(Codec codec, Listener listener) {
+        this(codec, listener, DEFAULT_QUEUE_DEPTH, BackPressure.DROP_OLDEST, DEFAULT_FRAME_RATE);
+    }
+
+    /**
+     * Create a pipeline with a single decode worker
+     *
+     * @param codec
+     *            the codec used to decode received messages
+     * @param listener
+     *            the listener that batches of decoded messages are delivered to
+     * @param queueDepth
+     *            the number of messages that can be waiting to be decoded
+     * @param policy
+     *            what to do when a message arrives and the queue is full
+     * @param frameRate
+     *            the maximum number of batches delivered per second
+     */
+    public ReceivePipeline(Codec codec, Listener listener, int queueDepth, BackPressure policy, int frameRate) {
+        this(codec, listener, queueDepth, policy, frameRate, 1);
+    }
+
+    /**
+     * Create a pipeline that decodes with several workers sharing one codec.
+     * The codec is only shared if it is annotated with ThreadSafe, otherwise a
+     * single worker is used.
+     *
+     * @param codec
+     *            the codec used to decode received messages
+     * @param listener
+     *            the listener that batches of decoded messages are delivered to
+     * @param queueDepth
+     *            the number of messages that can be waiting to be decoded
+     * @param policy
+     *            what to do when a message arrives and the queue is full
+     * @param frameRate
+     *            the maximum number of batches delivered per second
+     * @param workers
+     *            the number of decode workers
+     */
+    public ReceivePipeline(Codec codec, Listener listener, int queueDepth, BackPressure policy, int frameRate,
+            int workers) {
+        this(codecs(codec, null, workers), listener, queueDepth, policy, frameRate, null);
+    }
+
+    /**
+     * Create a pipeline that delivers batches on a scheduler thread rather
+     * than the Event Dispatch Thread, for programs that do not use Swing. The
+     * codec is shared by the workers only if it is annotated with ThreadSafe,
+     * otherwise a single worker is used.
+     *
+     * @param codec
+     *            the codec used to decode received messages
+     * @param listener
+     *            the listener that batches of decoded messages are delivered to
+     * @param queueDepth
+     *            the number of messages that can be waiting to be decoded
+     * @param policy
+     *            what to do when a message arrives and the queue is full
+     * @param frameRate
+     *            the maximum number of batches delivered per second
+     * @param workers
+     *            the number of decode workers
+     * @param scheduler
+     *            the scheduler the listener is called on
+     */
+    public ReceivePipeline(Codec codec, Listener listener, int queueDepth, BackPressure policy, int frameRate,
+            int workers, ScheduledExecutorService scheduler) {
+        this(codecs(codec, null, workers), listener, queueDepth, policy, frameRate, scheduler);
+    }
+
+    /**
+     * Create a pipeline that decodes with several workers, each with its own
+     * codec. If the codec is annotated with ThreadSafe a single instance is
+     * shared instead.
+     *
+     * @param codecs
+     *            creates the codecs used to decode received messages
+     * @param listener
+     *            the listener that batches of decoded messages are delivered to
+     * @param queueDepth
+     *            the number of messages that can be waiting to be decoded
+     * @param policy
+     *            what to do when a message arrives and the queue is full
+     * @param frameRate
+     *            the maximum number of batches delivered per second
+     * @param workers
+     *            the number of decode workers
+     */
+    public ReceivePipeline(Supplier<? extends Codec> codecs, Listener listener, int queueDepth,
+            BackPressure policy, int frameRate, int workers) {
+        this(codecs(codecs.get(), codecs, workers), listener, queueDepth, policy, frameRate, null);
+    }
+
+    /**
+     * Create a pipeline that decodes with several workers, each with its own
+     * codec, and delivers batches on a scheduler thread rather than the Event
+     * Dispatch Thread. If the codec is annotated with ThreadSafe a single
+     * instance is shared instead.
+     *
+     * @param codecs
+     *            creates the codecs used to decode received messages
+     * @param listener
+     *            the listener that batches of decoded messages are delivered to
+     * @param queueDepth
+     *            the number of messages that can be waiting to be decoded
+     * @param policy
+     *            what to do when a message arrives and the queue is full
+     * @param frameRate
+     *            the maximum number of batches delivered per second
+     * @param workers
+     *            the number of decode workers
+     * @param scheduler
+     *            the scheduler the listener is called on
+     */
+    public ReceivePipeline(Supplier<? extends Codec> codecs, Listener listener, int queueDepth,
+            BackPressure policy, int frameRate, int workers, ScheduledExecutorService scheduler) {
+        this(codecs(codecs.get(), codecs, workers), listener, queueDepth, policy, frameRate, scheduler);
+    }
+
+    private ReceivePipeline(Codec[] codecs, Listener listener, int queueDepth, BackPressure policy, int frameRate,
+            ScheduledExecutorService scheduler) {
+        if (queueDepth < 1) {
+            throw new IllegalArgumentException("queue depth must be a positive number");
+        }
+        if (frameRate < 1) {
+            throw new IllegalArgumentException("frame rate must be a positive number");
+        }
+        this.listener = listener;
+        this.policy = policy;
+        raw = new RingBuffer<Message>(queueDepth);
+        ExecutionModel model = ExecutionModel.getDefault();
+        decoders = new DecodePool(codecs, queueDepth, errors, decodeLatency, model);
+
+        dispatchThread = model.start(new Runnable() {
+            @Override
+            public void run() {
+                dispatchLoop();
+            }
+        }, "windtalker-dispatcher");
+
+        if (scheduler == null) {
+            frameTask = null;
+            frameTimer = new Timer(1000 / frameRate, new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent event) {
+                    deliverFrame();
+                }
+            });
+            frameTimer.setCoalesce(true);
+            frameTimer.start();
+        } else {
+            frameTimer = null;
+            long period = TimeUnit.SECONDS.toNanos(1) / frameRate;
+            frameTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        deliverFrame();
+                    } catch (RuntimeException ex) {
+                        /* an exception would cancel every later delivery */
+                        LOG.log(Level.WARNING, "Listener failed", ex);
+                    }
+                }
+            }, period, period, TimeUnit.NANOSECONDS);
+        }
+        mbeanName = Jmx.register(this, "ReceivePipeline");
+    }
+
+    /*
+     * Work out the codec for each decode worker. Codecs that are not thread
+     * safe are never shared, so without a way to create more of them there can
+     * only be one worker.
+     */
+    private static Codec[] codecs(Codec codec, Supplier<? extends Codec> factory, int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("there must be at least one decode worker");
+        }
+        boolean threadSafe = isThreadSafe(codec);
+        if (!threadSafe && factory == null) {
+            workers = 1;
+        }
+        Codec[] codecs = new Codec[workers];
+        codecs[0] = codec;
+        for (int i = 1; i < workers; i++) {
+            codecs[i] = threadSafe ? codec : factory.get();
+        }
+        return codecs;
+    }
+
+    /*
+     * CachingCodecs and ProfilingCodecs are as thread safe as the codec they
+     * wrap
+     */
+    private static boolean isThreadSafe(Codec codec) {
+        if (codec instanceof CachingCodec) {
+            return isThreadSafe(((CachingCodec) codec).getCodec());
+        }
+        if (codec instanceof ProfilingCodec) {
+            return isThreadSafe(((ProfilingCodec) codec).getCodec());
+        }
+        return codec.getClass().isAnnotationPresent(ThreadSafe.class);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see co.andrewbates.windtalker.Receiver#receive(java.lang.String,
+     * boolean)
+     */
+    @Override
+    public void receive(String message, boolean self) {
+        Message m = new Message(message, (InetSocketAddress) null, self, System.currentTimeMillis());
+        if (accept(m)) {
+            receive(m);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * co.andrewbates.windtalker.Receiver#accept(co.andrewbates.windtalker.
+     * Message)
+     */
+    @Override
+    public boolean accept(Message message) {
+        if ((message.isSelf() && ignoreSelf) || closing) {
+            // receive throws these away itself, they are still journaled
+            return true;
+        }
+        int verdict = guard.check(message, System.nanoTime());
+        if (verdict == FloodGuard.RATE_LIMITED) {
+            rateLimited.increment();
+            return false;
+        } else if (verdict == FloodGuard.DUPLICATE) {
+            repeatsDropped.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * co.andrewbates.windtalker.Receiver#receive(co.andrewbates.windtalker.
+     * Message)
+     */
+    @Override
+    public void receive(Message message) {
+        if ((message.isSelf() && ignoreSelf) || closing) {
+            return;
+        }
+        received.increment();
+        while (!raw.offer(message)) {
+            if (policy == BackPressure.DROP_NEWEST) {
+                dropped.increment();
+                return;
+            } else if (policy == BackPressure.DROP_OLDEST) {
+                if (raw.poll() != null) {
+                    dropped.increment();
+                }
+            } else {
+                LockSupport.parkNanos(DECODE_BACKOFF_NANOS);
+                if (!running) {
+                    return;
+                }
+            }
+        }
+        if (dispatcherWaiting) {
+            LockSupport.unpark(dispatchThread);
+        }
+    }
+
+    private void dispatchLoop() {
+        while (running) {
+            Message message = raw.poll();
+            if (message == null) {
+                dispatcherWaiting = true;
+                message = raw.poll();
+                if (message == null) {
+                    LockSupport.park(this);
+                    dispatcherWaiting = false;
+                    continue;
+                }
+                dispatcherWaiting = false;
+            }
+
+            /*
+             * If the UI has fallen behind, stop dispatching until it catches
+             * up so that the back pressure policy is applied at the receive
+             * queue
+             */
+            while (!decoders.submit(message) && running) {
+                LockSupport.parkNanos(DECODE_BACKOFF_NANOS);
+            }
+        }
+    }
+
+    private void deliverFrame() {
+        Message message;
+        int max = decoders.capacity();
+        while (batch.size() < max && (message = decoders.poll()) != null) {
+            batch.add(message);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            listener.deliver(batch);
+        } finally {
+            delivered.add(batch.size());
+            batch.clear();
+        }
+    }
+
+    /**
+     * Choose whether messages sent by this program are discarded before they
+     * are decoded
+     *
+     * @param ignoreSelf
+     *            true to discard our own messages
+     */
+    public void setIgnoreSelf(boolean ignoreSelf) {
+        this.ignoreSelf = ignoreSelf;
+    }
+
+    /**
+     * Limit how fast each host may send. Messages over the limit are thrown
+     * away before they are queued. There is no limit unless this is called.
+     *
+     * @param messagesPerSecond
+     *            the rate a host may keep up, or 0 for no limit
+     * @param burst
+     *            the number of messages a host may send at once after being
+     *            quiet
+     */
+    public void setRateLimit(double messagesPerSecond, int burst) {
+        guard.setRateLimit(messagesPerSecond, burst);
+    }
+
+    /**
+     * Limit how many times in a row a host may send the same message. Further
+     * copies are thrown away before they are queued until the host sends
+     * something else or stops for ten seconds. There is no limit unless this is
+     * called.
+     *
+     * @param repeats
+     *            the number of repeats allowed after the first copy, or 0 for
+     *            no limit
+     */
+    public void setRepeatLimit(int repeats) {
+        guard.setRepeatLimit(repeats);
+    }
+
+    @Override
+    public double getRateLimit() {
+        return guard.getRateLimit();
+    }
+
+    @Override
+    public int getRepeatLimit() {
+        return guard.getRepeatLimit();
+    }
+
+    /**
+     * @return the back pressure policy applied when the receive queue is full
+     */
+    public BackPressure getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the number of messages the receive queue can hold
+     */
+    @Override
+    public int getQueueCapacity() {
+        return raw.capacity();
+    }
+
+    /**
+     * @return the number of messages waiting to be decoded
+     */
+    @Override
+    public int getQueueDepth() {
+        return raw.size();
+    }
+
+    /**
+     * @return the number of messages being decoded or waiting for the next
+     *         frame
+     */
+    @Override
+    public int getPendingDelivery() {
+        return decoders.pending();
+    }
+
+    /**
+     * @return the number of decode workers
+     */
+    @Override
+    public int getWorkers() {
+        return decoders.size();
+    }
+
+    /**
+     * @return the number of messages accepted from the network
+     */
+    @Override
+    public long getReceived() {
+        return received.sum();
+    }
+
+    /**
+     * @return the number of messages thrown away because the queue was full
+     */
+    @Override
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of messages the codec failed to decode
+     */
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * @return the number of messages delivered to the listener
+     */
+    @Override
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    /**
+     * @return the number of messages thrown away because their sender was
+     *         over the rate limit
+     */
+    @Override
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    /**
+     * @return the number of messages thrown away because their sender sent
+     *         the same message too many times in a row
+     */
+    @Override
+    public long getRepeatsDropped() {
+        return repeatsDropped.sum();
+    }
+
+    /**
+     * @return the number of sending hosts being tracked for flood protection
+     */
+    @Override
+    public int getSenders() {
+        return guard.size();
+    }
+
+    /**
+     * @return the time taken to decode each message, in nanoseconds
+     */
+    public Histogram getDecodeLatency() {
+        return decodeLatency;
+    }
+
+    @Override
+    public double getDecodeMeanMicros() {
+        return decodeLatency.getMean() / 1000;
+    }
+
+    @Override
+    public double getDecode99thPercentileMicros() {
+        return decodeLatency.getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getDecodeMaxMicros() {
+        return decodeLatency.getMax() / 1000.0;
+    }
+
+    /**
+     * Stop accepting messages, then wait for the ones already received to be
+     * decoded and delivered before closing. When called on the Event Dispatch
+     * Thread the remaining frames are delivered straight away, since the frame
+     * timer can not run while it waits.
+     * 
+     * @param timeoutMillis
+     *            the longest time to wait for the queues to empty
+     * @return true if every message was delivered, false if some were still
+     *         queued when the time ran out and were discarded
+     */
+    public boolean close(long timeoutMillis) {
+        closing = true;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        boolean onDispatchThread = SwingUtilities.isEventDispatchThread();
+        boolean drained;
+        while (!(drained = delivered.sum() + dropped.sum() + errors.sum() >= received.sum())
+                && System.currentTimeMillis() < deadline) {
+            if (onDispatchThread) {
+                deliverFrame();
+            }
+            LockSupport.parkNanos(DECODE_BACKOFF_NANOS);
+        }
+        close();
+        try {
+            drained &= decoders.awaitTermination(Math.max(1, deadline - System.currentTimeMillis()));
+            dispatchThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return drained;
+    }
+
+    /**
+     * Stop the decode threads and the frame timer. Messages already handed to
+     * the decode threads are still decoded, but messages waiting to be handed
+     * to them and decoded messages waiting for the next frame are discarded.
+     * Use close(long) to deliver everything first.
+     */
+    public void close() {
+        Jmx.unregister(mbeanName);
+        running = false;
+        LockSupport.unpark(dispatchThread);
+        decoders.close();
+        if (frameTimer != null) {
+            frameTimer.stop();
+        } else {
+            frameTask.cancel(false);
+        }
+    }
+}
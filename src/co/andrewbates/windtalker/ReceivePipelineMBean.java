@@ -0,0 +1,112 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+/**
+ * @author Andrew Bates
+ *
+ *         The statistics a ReceivePipeline publishes through JMX
+ */
+public interface ReceivePipelineMBean {
+    /**
+     * @return the number of messages the receive queue can hold
+     */
+    public int getQueueCapacity();
+
+    /**
+     * @return the number of messages waiting to be decoded
+     */
+    public int getQueueDepth();
+
+    /**
+     * @return the number of messages being decoded or waiting for the next
+     *         frame
+     */
+    public int getPendingDelivery();
+
+    /**
+     * @return the number of decode workers
+     */
+    public int getWorkers();
+
+    /**
+     * @return the number of messages accepted from the network
+     */
+    public long getReceived();
+
+    /**
+     * @return the number of messages thrown away because the queue was full
+     */
+    public long getDropped();
+
+    /**
+     * @return the number of messages the codec failed to decode
+     */
+    public long getErrors();
+
+    /**
+     * @return the number of messages delivered to the listener
+     */
+    public long getDelivered();
+
+    /**
+     * @return the number of messages thrown away because their sender was
+     *         over the rate limit
+     */
+    public long getRateLimited();
+
+    /**
+     * @return the number of messages thrown away because their sender sent
+     *         the same message too many times in a row
+     */
+    public long getRepeatsDropped();
+
+    /**
+     * @return the number of sending hosts being tracked for flood protection
+     */
+    public int getSenders();
+
+    /**
+     * @return the number of messages a second each host may send, or 0 for no
+     *         limit
+     */
+    public double getRateLimit();
+
+    /**
+     * @return the number of times in a row a host may repeat a message, or 0
+     *         for no limit
+     */
+    public int getRepeatLimit();
+
+    /**
+     * @return the mean time the codec took to decode a message, in
+     *         microseconds
+     */
+    public double getDecodeMeanMicros();
+
+    /**
+     * @return the 99th percentile of the time the codec took to decode a
+     *         message, in microseconds
+     */
+    public double getDecode99thPercentileMicros();
+
+    /**
+     * @return the longest time the codec took to decode a message, in
+     *         microseconds
+     */
+    public double getDecodeMaxMicros();
+}
@@ -2,4 +2,28 @@ package co.andrewbates.windtalker;
 
 interface Receiver {
     public void receive(String message, boolean self);
-}
\ No newline at end of file
+
+    /**
+     * Receive a message along with its source and timestamp. Receivers that
+     * only care about the text do not need to implement this.
+     *
+     * @param message
+     *            the received message
+     */
+    public default void receive(Message message) {
+        receive(message.getText(), message.isSelf());
+    }
+
+    /**
+     * Decide whether to take a message before it is counted or written to the
+     * journal. Messages turned away here are never passed to receive.
+     * Receivers that take everything do not need to implement this.
+     *
+     * @param message
+     *            the received message
+     * @return false to throw the message away
+     */
+    public default boolean accept(Message message) {
+        return true;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * @author Andrew Bates
+ *
+ *         A Transport that divides the network into named rooms. Datagrams are
+ *         only received from rooms that have been joined, and are sent to the
+ *         current room. Rooms can be joined and left while the transport is
+ *         running.
+ */
+public interface RoomTransport extends Transport {
+    /**
+     * Start receiving datagrams sent to a room. Joining a room that has
+     * already been joined does nothing.
+     *
+     * @param room
+     *            the name of the room
+     * @throws IOException
+     *             thrown if the room could not be joined
+     */
+    public void join(String room) throws IOException;
+
+    /**
+     * Stop receiving datagrams sent to a room. The current room can not be
+     * left, another room has to be made current first.
+     *
+     * @param room
+     *            the name of the room
+     * @throws IOException
+     *             thrown if the room could not be left
+     */
+    public void leave(String room) throws IOException;
+
+    /**
+     * Send datagrams to a room from now on, joining it first if needed
+     *
+     * @param room
+     *            the name of the room
+     * @throws IOException
+     *             thrown if the room could not be joined
+     */
+    public void setRoom(String room) throws IOException;
+
+    /**
+     * Send the remaining bytes of the buffer as a single datagram to a room
+     * other than the current one, such as when sending a datagram again to
+     * the room it was first sent to. The room does not need to be joined.
+     *
+     * @param payload
+     *            the datagram payload
+     * @param room
+     *            the name of the room
+     * @throws IOException
+     *             thrown if the datagram could not be sent
+     */
+    public void send(ByteBuffer payload, String room) throws IOException;
+
+    /**
+     * @return the room datagrams are sent to
+     */
+    public String getRoom();
+
+    /**
+     * @return the rooms that have been joined, in the order they were joined
+     */
+    public Set<String> getRooms();
+}
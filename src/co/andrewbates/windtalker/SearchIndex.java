@@ -0,0 +1,266 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Andrew Bates
+ *
+ *         An inverted index of the words in a MessageStore, so lines can be
+ *         found without reading the whole store. Each word maps to a posting
+ *         list of the ids of the lines it appears in, held in a plain int
+ *         array in the order the lines were added. Only the low 32 bits of an
+ *         id are kept, which is enough to tell apart every line in a store of
+ *         up to two billion lines.
+ *
+ *         Lines must be added in id order and removed oldest first, in step
+ *         with the store, so lines always come off the front of a posting
+ *         list. Words are split on anything that is not a letter or digit and
+ *         compared without case.
+ *
+ *         The index is not thread safe.
+ */
+final class SearchIndex {
+    private static final int INITIAL_POSTINGS = 4;
+    /* longer words are cut short, they are almost never searched for in full */
+    private static final int MAX_TERM_LENGTH = 32;
+
+    /*
+     * The ids of the lines a word appears in, oldest first
+     */
+    private static final class Postings {
+        int[] ids = new int[INITIAL_POSTINGS];
+        int start;
+        int end;
+
+        int size() {
+            return end - start;
+        }
+
+        void add(int id) {
+            if (end == ids.length) {
+                int size = size();
+                if (start > 0 && size <= ids.length / 2) {
+                    System.arraycopy(ids, start, ids, 0, size);
+                } else {
+                    ids = Arrays.copyOfRange(ids, start, start + ids.length * 2);
+                }
+                start = 0;
+                end = size;
+            }
+            ids[end++] = id;
+        }
+    }
+
+    /*
+     * Called for each word in a line
+     */
+    private interface Visitor {
+        void visit(String term);
+    }
+
+    private final Map<String, Postings> terms = new HashMap<String, Postings>();
+    private final StringBuilder term = new StringBuilder(MAX_TERM_LENGTH);
+    /* every id in the index is at least this */
+    private long oldest;
+
+    /**
+     * Index a line
+     *
+     * @param id
+     *            the line's id, greater than the id of every line already
+     *            added
+     * @param line
+     *            the line
+     */
+    void add(long id, String line) {
+        if (terms.isEmpty()) {
+            oldest = id;
+        }
+        final int key = (int) id;
+        words(line, new Visitor() {
+            @Override
+            public void visit(String word) {
+                Postings list = terms.get(word);
+                if (list == null) {
+                    list = new Postings();
+                    terms.put(word, list);
+                }
+                /* a word that appears twice in a line is only listed once */
+                if (list.size() == 0 || list.ids[list.end - 1] != key) {
+                    list.add(key);
+                }
+            }
+        });
+    }
+
+    /**
+     * Take a line out of the index
+     *
+     * @param id
+     *            the id of the oldest line in the index
+     * @param line
+     *            the line, exactly as it was added
+     */
+    void remove(long id, String line) {
+        final int key = (int) id;
+        words(line, new Visitor() {
+            @Override
+            public void visit(String word) {
+                Postings list = terms.get(word);
+                if (list != null && list.size() > 0 && list.ids[list.start] == key) {
+                    list.start++;
+                    if (list.size() == 0) {
+                        terms.remove(word);
+                    }
+                }
+            }
+        });
+        oldest = id + 1;
+    }
+
+    /**
+     * Find the lines that contain every word in a query
+     *
+     * @param query
+     *            the words to look for
+     * @param limit
+     *            the most ids to return
+     * @return the ids of the matching lines, newest first
+     */
+    long[] search(String query, int limit) {
+        final Map<String, Postings> found = new HashMap<String, Postings>();
+        final boolean[] missing = new boolean[1];
+        words(query, new Visitor() {
+            @Override
+            public void visit(String word) {
+                Postings list = terms.get(word);
+                if (list == null) {
+                    missing[0] = true;
+                } else {
+                    found.put(word, list);
+                }
+            }
+        });
+        if (missing[0] || found.isEmpty()) {
+            return new long[0];
+        }
+
+        /*
+         * Leapfrog from newest to oldest: each list skips back to the newest
+         * line no newer than the current candidate, and whenever one of them
+         * lands on an older line that becomes the candidate. Starting with the
+         * shortest list keeps the candidates few.
+         */
+        Postings[] lists = found.values().toArray(new Postings[found.size()]);
+        Arrays.sort(lists, new Comparator<Postings>() {
+            @Override
+            public int compare(Postings a, Postings b) {
+                return Integer.compare(a.size(), b.size());
+            }
+        });
+        int base = (int) oldest;
+        int[] positions = new int[lists.length];
+        for (int i = 0; i < lists.length; i++) {
+            positions[i] = lists[i].end - 1;
+        }
+        Postings shortest = lists[0];
+        long[] hits = new long[Math.min(limit, shortest.size())];
+        int count = 0;
+        search: while (count < hits.length && positions[0] >= shortest.start) {
+            long candidate = offset(shortest.ids[positions[0]], base);
+            int i = 1;
+            while (i < lists.length) {
+                positions[i] = seek(lists[i], positions[i], candidate, base);
+                if (positions[i] < lists[i].start) {
+                    break search;
+                }
+                long older = offset(lists[i].ids[positions[i]], base);
+                if (older < candidate) {
+                    positions[0] = seek(shortest, positions[0], older, base);
+                    if (positions[0] < shortest.start) {
+                        break search;
+                    }
+                    candidate = offset(shortest.ids[positions[0]], base);
+                    i = 1;
+                } else {
+                    i++;
+                }
+            }
+            hits[count++] = oldest + candidate;
+            positions[0]--;
+        }
+        return count == hits.length ? hits : Arrays.copyOf(hits, count);
+    }
+
+    /*
+     * Find the newest entry at or before from that is no newer than target,
+     * galloping backwards and then searching the last stride. Entries are
+     * compared by their distance from the oldest id, which keeps working when
+     * the low 32 bits of the ids wrap around. Returns start - 1 if there is
+     * none.
+     */
+    private static int seek(Postings list, int from, long target, int base) {
+        if (from < list.start || offset(list.ids[from], base) <= target) {
+            return from;
+        }
+        int high = from;
+        int step = 1;
+        int low = high - step;
+        while (low >= list.start && offset(list.ids[low], base) > target) {
+            high = low;
+            step <<= 1;
+            low = high - step;
+        }
+        low = Math.max(low, list.start - 1);
+        while (high - low > 1) {
+            int middle = (low + high) >>> 1;
+            if (offset(list.ids[middle], base) <= target) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static long offset(int key, int base) {
+        return (key - base) & 0xffffffffL;
+    }
+
+    /*
+     * Split text into lower case words
+     */
+    private void words(String text, Visitor visitor) {
+        term.setLength(0);
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (term.length() < MAX_TERM_LENGTH) {
+                    term.append(Character.toLowerCase(c));
+                }
+            } else if (term.length() > 0) {
+                visitor.visit(term.toString());
+                term.setLength(0);
+            }
+        }
+    }
+}
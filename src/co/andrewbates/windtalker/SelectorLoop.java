@@ -0,0 +1,190 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * @author Andrew Bates
+ *
+ *         A single I/O thread that services any number of non-blocking
+ *         channels with one Selector. All channels share one direct receive
+ *         buffer, which is safe since only the loop thread ever touches it.
+ */
+final class SelectorLoop implements Runnable {
+    /**
+     * Something registered with the loop that wants to know when its channel
+     * is ready
+     */
+    interface Endpoint {
+        /**
+         * Called on the loop thread when the channel is ready for the
+         * operations it registered for
+         *
+         * @param key
+         *            the selection key of the ready channel
+         * @param buffer
+         *            the shared receive buffer, cleared and ready for use
+         * @throws IOException
+         *             thrown if the channel failed
+         */
+        void ready(SelectionKey key, ByteBuffer buffer) throws IOException;
+
+        /**
+         * Called on the loop thread when ready throws an exception
+         *
+         * @param ex
+         *            the exception thrown by ready
+         */
+        default void failed(IOException ex) {
+            LOG.log(Level.WARNING, "Channel failed", ex);
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger(SelectorLoop.class.getName());
+    private static final int RECEIVE_BUFFER_SIZE = 65536;
+    private static SelectorLoop shared;
+
+    private final Selector selector;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * Open a new selector and start the loop thread
+     *
+     * @param name
+     *            name of the loop thread
+     * @throws IOException
+     *             thrown if the selector could not be opened
+     */
+    SelectorLoop(String name) throws IOException {
+        selector = Selector.open();
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the loop shared by every transceiver in this JVM
+     * @throws IOException
+     *             thrown if the loop could not be started
+     */
+    static synchronized SelectorLoop shared() throws IOException {
+        if (shared == null) {
+            shared = new SelectorLoop("windtalker-selector");
+        }
+        return shared;
+    }
+
+    /**
+     * Run a task on the loop thread. Anything that touches selection keys
+     * should go through here.
+     *
+     * @param task
+     *            the task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Register a channel with the loop. The channel must already be in
+     * non-blocking mode.
+     *
+     * @param channel
+     *            the channel to register
+     * @param ops
+     *            the initial interest set
+     * @param endpoint
+     *            the endpoint to notify when the channel is ready
+     */
+    void register(final SelectableChannel channel, final int ops, final Endpoint endpoint) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.register(selector, ops, endpoint);
+                } catch (IOException ex) {
+                    LOG.log(Level.WARNING, "Could not register channel", ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Change the interest set of a channel that is already registered
+     *
+     * @param channel
+     *            the registered channel
+     * @param ops
+     *            the new interest set
+     */
+    void interest(final SelectableChannel channel, final int ops) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                SelectionKey key = channel.keyFor(selector);
+                if (key != null && key.isValid()) {
+                    key.interestOps(ops);
+                }
+            }
+        });
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    buffer.clear();
+                    try {
+                        ((Endpoint) key.attachment()).ready(key, buffer);
+                    } catch (IOException ex) {
+                        ((Endpoint) key.attachment()).failed(ex);
+                    }
+                }
+            } catch (Exception ex) {
+                LOG.log(Level.SEVERE, "Selector loop failed", ex);
+            }
+        }
+    }
+}
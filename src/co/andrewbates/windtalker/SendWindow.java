@@ -0,0 +1,125 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Andrew Bates
+ *
+ *         The datagrams a reliable transceiver sent most recently, kept so
+ *         they can be sent again when a receiver reports them missing. Every
+ *         SEQUENCED datagram is given the next sequence number and copied into
+ *         a slot of a fixed size ring, so a datagram stays available until the
+ *         sender has sent as many newer ones as the ring holds. The slots are
+ *         allocated the first time they are used and reused after that.
+ *
+ *         A datagram is only sent again once within the holdoff time, because
+ *         every receiver that missed it asks for it at about the same time.
+ */
+final class SendWindow {
+    private final ByteBuffer[] slots;
+    private final int[] sequences;
+    private final long[] resent;
+    private final long holdoff;
+    private int next;
+    private int stored;
+
+    /**
+     * Create a send window
+     *
+     * @param size
+     *            the number of datagrams to keep
+     * @param holdoff
+     *            milliseconds before the same datagram will be sent again
+     * @param first
+     *            the sequence number to start counting from
+     */
+    SendWindow(int size, long holdoff, int first) {
+        slots = new ByteBuffer[size];
+        sequences = new int[size];
+        resent = new long[size];
+        this.holdoff = holdoff;
+        next = first;
+    }
+
+    /**
+     * Give a SEQUENCED datagram its sequence number and keep a copy of it.
+     * The datagram's position is not changed.
+     *
+     * @param datagram
+     *            the datagram, positioned at its frame header
+     */
+    synchronized void store(ByteBuffer datagram) {
+        int sequence = next++;
+        int position = datagram.position();
+        datagram.putInt(position + Frame.HEADER_SIZE, sequence);
+
+        int index = Math.floorMod(sequence, slots.length);
+        ByteBuffer slot = slots[index];
+        if (slot == null || slot.capacity() < datagram.remaining()) {
+            slot = ByteBuffer.allocateDirect(datagram.remaining());
+            slots[index] = slot;
+        }
+        slot.clear();
+        slot.put(datagram).flip();
+        datagram.position(position);
+        sequences[index] = sequence;
+        resent[index] = 0;
+        stored = Math.min(stored + 1, slots.length);
+    }
+
+    /**
+     * Find a datagram to send again. Callers must hold the window's lock until
+     * they have finished sending the returned buffer.
+     *
+     * @param sequence
+     *            the sequence number of the datagram
+     * @param now
+     *            the current time in milliseconds
+     * @return the datagram, or null if it is no longer in the window or was
+     *         sent again within the holdoff time
+     */
+    ByteBuffer resend(int sequence, long now) {
+        int age = next - sequence;
+        if (age <= 0 || age > stored) {
+            return null;
+        }
+        int index = Math.floorMod(sequence, slots.length);
+        if (sequences[index] != sequence || now - resent[index] < holdoff) {
+            return null;
+        }
+        resent[index] = now;
+        ByteBuffer slot = slots[index];
+        slot.rewind();
+        return slot;
+    }
+
+    /**
+     * @return the sequence number of the last datagram stored
+     */
+    synchronized int last() {
+        return next - 1;
+    }
+
+    /**
+     * @return true if no datagrams have been stored yet
+     */
+    synchronized boolean isEmpty() {
+        return stored == 0;
+    }
+}
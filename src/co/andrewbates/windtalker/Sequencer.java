@@ -0,0 +1,369 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author Andrew Bates
+ *
+ *         Puts the SEQUENCED datagrams from reliable senders back in order.
+ *         Each sender has a stream that remembers the next sequence number it
+ *         expects. A datagram that arrives early is copied into a slot of the
+ *         stream's window until the ones before it turn up, a datagram that
+ *         was already delivered is thrown away, and a missing run of sequence
+ *         numbers is asked for again with a NACK until it arrives or the gap
+ *         timeout passes, when it is counted as lost and skipped.
+ *
+ *         The first datagram heard from a sender starts its stream, nothing
+ *         sent before that is asked for. Streams that have been quiet for the
+ *         idle timeout are forgotten, as is the oldest stream when the table
+ *         is full.
+ *
+ *         The sequencer is not thread safe.
+ */
+final class Sequencer {
+    /**
+     * Where the sequencer sends its results
+     */
+    interface Output {
+        /**
+         * Called for each datagram in sequence order
+         *
+         * @param sender
+         *            the id of the transceiver that sent the datagram
+         * @param source
+         *            the address the datagram came from
+         * @param type
+         *            the type of the wrapped frame
+         * @param body
+         *            the wrapped frame, positioned after its header
+         */
+        void release(long sender, InetSocketAddress source, byte type, ByteBuffer body);
+
+        /**
+         * Called to ask a sender for missing datagrams
+         *
+         * @param sender
+         *            the id of the transceiver that sent them
+         * @param first
+         *            the first missing sequence number
+         * @param count
+         *            the number of missing datagrams
+         */
+        void nack(long sender, int first, int count);
+    }
+
+    private final class Stream {
+        final long sender;
+        final ByteBuffer[] slots = new ByteBuffer[window];
+        final boolean[] held = new boolean[window];
+        InetSocketAddress source;
+        int expected;
+        int highest;
+        int holding;
+        long heard;
+        long gapSince;
+        long nacked;
+
+        Stream(long sender, int first) {
+            this.sender = sender;
+            expected = first;
+            highest = first - 1;
+        }
+
+        boolean hasGap() {
+            return highest - expected >= 0;
+        }
+
+        /*
+         * The number of missing sequence numbers before the next one held,
+         * or before the highest known one if none are held
+         */
+        int missing() {
+            int count = 0;
+            while (count < window && count <= highest - expected
+                    && !held[Math.floorMod(expected + count, window)]) {
+                count++;
+            }
+            return count;
+        }
+
+        void hold(int sequence, byte type, ByteBuffer body) {
+            int index = Math.floorMod(sequence, window);
+            ByteBuffer slot = slots[index];
+            if (slot == null || slot.capacity() < body.remaining() + 1) {
+                slot = ByteBuffer.allocate(Math.max(body.remaining() + 1, 256));
+                slots[index] = slot;
+            }
+            slot.clear();
+            slot.put(type).put(body).flip();
+            held[index] = true;
+            holding++;
+        }
+
+        /*
+         * Release everything held from the expected sequence number on
+         */
+        void drain(Output output) {
+            int index = Math.floorMod(expected, window);
+            while (held[index]) {
+                held[index] = false;
+                holding--;
+                expected++;
+                ByteBuffer slot = slots[index];
+                byte type = slot.get(0);
+                slot.position(1);
+                output.release(sender, source, type, slot);
+                index = Math.floorMod(expected, window);
+            }
+        }
+
+        /*
+         * Give up on the missing run in front of the next held datagram
+         */
+        void skip(Output output) {
+            int count = missing();
+            expected += count;
+            lost += count;
+            drain(output);
+        }
+
+        /*
+         * Ask for every missing run between the expected sequence number and
+         * the highest known one
+         */
+        void nack(long now, Output output) {
+            nacked = now;
+            int known = Math.min(highest - expected + 1, window);
+            int run = 0;
+            for (int i = 0; i <= known; i++) {
+                if (i < known && !held[Math.floorMod(expected + i, window)]) {
+                    run++;
+                } else if (run > 0) {
+                    send(expected + i - run, run, output);
+                    run = 0;
+                }
+            }
+        }
+
+        void send(int first, int count, Output output) {
+            nacksSent++;
+            output.nack(sender, first, Math.min(count, 0xffff));
+        }
+    }
+
+    private final LinkedHashMap<Long, Stream> streams;
+    private final int window;
+    private final long nackInterval;
+    private final long gapTimeout;
+    private final long idleTimeout;
+    private long duplicates;
+    private long lost;
+    private long nacksSent;
+
+    /**
+     * Create a sequencer
+     *
+     * @param window
+     *            how many sequence numbers past a gap each stream can hold
+     * @param nackInterval
+     *            milliseconds between NACKs for the same gap
+     * @param gapTimeout
+     *            milliseconds before a gap is given up on
+     * @param idleTimeout
+     *            milliseconds before a quiet stream is forgotten
+     * @param maxStreams
+     *            the most streams to keep
+     */
+    Sequencer(int window, long nackInterval, long gapTimeout, long idleTimeout, final int maxStreams) {
+        this.window = window;
+        this.nackInterval = nackInterval;
+        this.gapTimeout = gapTimeout;
+        this.idleTimeout = idleTimeout;
+        streams = new LinkedHashMap<Long, Stream>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Stream> eldest) {
+                return size() > maxStreams;
+            }
+        };
+    }
+
+    /**
+     * Add a SEQUENCED datagram
+     *
+     * @param sender
+     *            the id of the transceiver that sent it
+     * @param source
+     *            the address it came from
+     * @param datagram
+     *            the datagram, positioned after the frame header
+     * @param now
+     *            the current time in milliseconds
+     * @param output
+     *            where to release datagrams and send NACKs
+     */
+    void add(long sender, InetSocketAddress source, ByteBuffer datagram, long now, Output output) {
+        if (datagram.remaining() < Frame.SEQUENCED_HEADER_SIZE - Frame.HEADER_SIZE) {
+            return;
+        }
+        int sequence = datagram.getInt();
+        byte type = datagram.get();
+        Stream stream = stream(sender, sequence);
+        stream.source = source;
+        stream.heard = now;
+
+        int ahead = sequence - stream.expected;
+        if (ahead < 0 || (ahead > 0 && stream.held[Math.floorMod(sequence, window)])) {
+            duplicates++;
+            return;
+        }
+        int skipped = sequence - stream.highest - 1;
+        if (skipped >= 0) {
+            stream.highest = sequence;
+        }
+        if (ahead == 0) {
+            stream.expected++;
+            output.release(sender, source, type, datagram);
+            stream.drain(output);
+            /* the gap closed, give the next one its own time */
+            stream.gapSince = stream.hasGap() ? now : 0;
+            return;
+        }
+
+        /* too far ahead to hold, give up on the oldest gaps to make room */
+        while (sequence - stream.expected >= window) {
+            stream.skip(output);
+        }
+        if (sequence == stream.expected) {
+            stream.expected++;
+            output.release(sender, source, type, datagram);
+            stream.drain(output);
+            return;
+        }
+        stream.hold(sequence, type, datagram);
+        if (stream.gapSince == 0) {
+            stream.gapSince = now;
+        }
+        /* ask for the newly missing run straight away */
+        int first = sequence - skipped;
+        if (first - stream.expected < 0) {
+            skipped -= stream.expected - first;
+            first = stream.expected;
+        }
+        if (skipped > 0) {
+            stream.send(first, skipped, output);
+        }
+    }
+
+    /**
+     * Add a HEARTBEAT, which tells the sequencer how far a sender has got
+     *
+     * @param sender
+     *            the id of the transceiver that sent it
+     * @param last
+     *            the last sequence number the sender used
+     * @param now
+     *            the current time in milliseconds
+     * @param output
+     *            where to send NACKs
+     */
+    void heartbeat(long sender, int last, long now, Output output) {
+        Stream stream = stream(sender, last + 1);
+        stream.heard = now;
+        int skipped = last - stream.highest;
+        if (skipped > 0) {
+            stream.highest = last;
+            if (stream.gapSince == 0) {
+                stream.gapSince = now;
+            }
+            stream.send(last - skipped + 1, skipped, output);
+        }
+    }
+
+    private Stream stream(long sender, int first) {
+        Stream stream = streams.get(sender);
+        if (stream == null) {
+            stream = new Stream(sender, first);
+            streams.put(sender, stream);
+        }
+        return stream;
+    }
+
+    /**
+     * Send NACKs again for gaps that are still open, give up on gaps that
+     * are too old and forget streams that have gone quiet
+     *
+     * @param now
+     *            the current time in milliseconds
+     * @param output
+     *            where to release datagrams and send NACKs
+     */
+    void tick(long now, Output output) {
+        Iterator<Stream> i = streams.values().iterator();
+        while (i.hasNext()) {
+            Stream stream = i.next();
+            if (!stream.hasGap()) {
+                if (now - stream.heard > idleTimeout) {
+                    i.remove();
+                }
+                continue;
+            }
+            if (now - stream.gapSince > gapTimeout) {
+                stream.skip(output);
+                stream.gapSince = stream.hasGap() ? now : 0;
+            } else if (now - stream.nacked >= nackInterval) {
+                stream.nack(now, output);
+            }
+        }
+    }
+
+    /**
+     * @return the number of streams being tracked
+     */
+    int size() {
+        return streams.size();
+    }
+
+    /**
+     * @return the number of datagrams thrown away because they had already
+     *         been received
+     */
+    long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return the number of datagrams given up on
+     */
+    long getLost() {
+        return lost;
+    }
+
+    /**
+     * @return the number of NACKs sent
+     */
+    long getNacksSent() {
+        return nacksSent;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.awt.Color;
+import java.awt.GridLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.BorderFactory;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.Timer;
+
+/**
+ * @author Andrew Bates
+ *
+ *         A small panel that shows the transceiver and receive pipeline
+ *         statistics, refreshed once a second. It also shows how many messages
+ *         a second the codec can decode, and turns red when messages arrive
+ *         faster than that.
+ */
+class StatsPanel extends JPanel {
+    private static final long serialVersionUID = -2930533409283934519L;
+    private static final int REFRESH_MILLIS = 1000;
+    /* warn before the queue starts filling, as rates are only averaged over a second */
+    private static final double HEADROOM = 0.8;
+
+    private final ReceivePipeline pipeline;
+    private final CodecProfiler profiler;
+    private final Timer timer;
+    private Transceiver transceiver;
+    private JLabel sent = value();
+    private JLabel received = value();
+    private JLabel queue = value();
+    private JLabel dropped = value();
+    private JLabel errors = value();
+    private JLabel decode = value();
+    private JLabel capacity = value();
+    private JLabel limited = value();
+    private Color normal = capacity.getForeground();
+    private long lastBytesOut;
+    private long lastBytesIn;
+    private long lastReceived;
+    private long lastUpdate;
+
+    /**
+     * Create the panel
+     *
+     * @param pipeline
+     *            the pipeline received messages go through
+     * @param profiler
+     *            the profiler timing the codec, or null if it is not profiled
+     */
+    StatsPanel(ReceivePipeline pipeline, CodecProfiler profiler) {
+        super(new GridLayout(0, 6, 5, 0));
+        this.pipeline = pipeline;
+        this.profiler = profiler;
+        setBorder(BorderFactory.createTitledBorder("Statistics"));
+        add(new JLabel("Sent:"));
+        add(sent);
+        add(new JLabel("Received:"));
+        add(received);
+        add(new JLabel("Queue:"));
+        add(queue);
+        add(new JLabel("Dropped:"));
+        add(dropped);
+        add(new JLabel("Errors:"));
+        add(errors);
+        add(new JLabel("Decode (99%):"));
+        add(decode);
+        add(new JLabel("Codec:"));
+        add(capacity);
+        add(new JLabel("Flood Limited:"));
+        add(limited);
+
+        timer = new Timer(REFRESH_MILLIS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                refresh();
+            }
+        });
+    }
+
+    private static JLabel value() {
+        return new JLabel("-");
+    }
+
+    /**
+     * Start showing the statistics of a transceiver
+     *
+     * @param transceiver
+     *            the transceiver to watch
+     */
+    void watch(Transceiver transceiver) {
+        this.transceiver = transceiver;
+        lastUpdate = System.nanoTime();
+        timer.start();
+    }
+
+    /**
+     * Stop refreshing the statistics
+     */
+    void stop() {
+        timer.stop();
+    }
+
+    private void refresh() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - lastUpdate) / 1e9;
+        long bytesOut = transceiver.getBytesOut();
+        long bytesIn = transceiver.getBytesIn();
+        sent.setText(transceiver.getMessagesOut() + " (" + rate((bytesOut - lastBytesOut) / seconds) + ")");
+        received.setText(transceiver.getMessagesIn() + " (" + rate((bytesIn - lastBytesIn) / seconds) + ")");
+        queue.setText(pipeline.getQueueDepth() + " / " + pipeline.getQueueCapacity());
+        dropped.setText(Long.toString(pipeline.getDropped()));
+        limited.setText(pipeline.getRateLimited() + " (" + pipeline.getRepeatsDropped() + " repeats)");
+        errors.setText(Long.toString(transceiver.getErrors() + pipeline.getErrors()));
+        decode.setText(String.format("%.1f \u00b5s", pipeline.getDecode99thPercentileMicros()));
+        long messagesIn = pipeline.getReceived();
+        showCapacity((messagesIn - lastReceived) / seconds);
+        lastReceived = messagesIn;
+        lastBytesOut = bytesOut;
+        lastBytesIn = bytesIn;
+        lastUpdate = now;
+    }
+
+    /*
+     * The pipeline's own decode times include cache hits, so once there are
+     * enough of them they are a better guess than the profiler, which only
+     * times the codec
+     */
+    private void showCapacity(double receivedPerSecond) {
+        Histogram latency = pipeline.getDecodeLatency();
+        double perWorker;
+        if (latency.getCount() >= CodecProfiler.MIN_SAMPLES) {
+            perWorker = 1e9 / Math.max(1, latency.getMean());
+        } else if (profiler != null) {
+            perWorker = profiler.getDecodeCapacity();
+        } else {
+            perWorker = 0;
+        }
+        double total = perWorker * pipeline.getWorkers();
+        if (total == 0) {
+            capacity.setForeground(normal);
+            capacity.setText("-");
+        } else if (receivedPerSecond > total * HEADROOM) {
+            capacity.setForeground(Color.RED);
+            capacity.setText(String.format("too slow: %.0f of %.0f msg/s", receivedPerSecond, total));
+        } else {
+            capacity.setForeground(normal);
+            capacity.setText(String.format("%.0f msg/s", total));
+        }
+    }
+
+    private static String rate(double bytesPerSecond) {
+        if (bytesPerSecond < 1024) {
+            return String.format("%.0f B/s", bytesPerSecond);
+        }
+        return String.format("%.1f KB/s", bytesPerSecond / 1024);
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * @author Andrew Bates
+ *
+ *         A codec that replaces every character with another one, such as
+ *         rot13, rot47, a Caesar shift or a keyword cipher. The substitutions
+ *         are described with a Builder and compiled into a pair of lookup
+ *         tables, so encoding and decoding is one table lookup per character
+ *         over an array, with no StringBuilder. Characters without a
+ *         substitution are left as they are.
+ *
+ *         Java keeps Strings that only hold ISO-8859-1 characters as one byte
+ *         per character. When every substitution stays inside ISO-8859-1 such
+ *         messages are substituted as bytes, which saves widening them to
+ *         chars and narrowing them back again.
+ *
+ *         <pre>
+ *         Codec rot47 = new SubstitutionCodec.Builder().rotate('!', '~', 47).build();
+ *         Codec caesar = new SubstitutionCodec.Builder().rotate('a', 'z', 3).rotate('A', 'Z', 3).build();
+ *         </pre>
+ *
+ *         The builder checks that no two characters encode to the same
+ *         character, so decoding always gives back exactly the message that
+ *         was encoded. A SubstitutionCodec never changes after it is built and
+ *         can be shared by any number of threads.
+ */
+@ThreadSafe
+public final class SubstitutionCodec implements BufferCodec {
+    /**
+     * Describes the substitutions a SubstitutionCodec makes. When a character
+     * is given more than one substitution the last one wins.
+     */
+    public static final class Builder {
+        /* the substitution for each character, or -1 for none */
+        private final int[] substitutions = new int[Character.MAX_VALUE + 1];
+        private int highest = -1;
+
+        /**
+         * Start with no substitutions
+         */
+        public Builder() {
+            Arrays.fill(substitutions, -1);
+        }
+
+        /**
+         * Substitute one character
+         *
+         * @param from
+         *            the clear text character
+         * @param to
+         *            the character it is encoded as
+         * @return this builder
+         */
+        public Builder map(char from, char to) {
+            if (from != to && (Character.isSurrogate(from) || Character.isSurrogate(to))) {
+                throw new IllegalArgumentException("surrogate characters can not be substituted");
+            }
+            substitutions[from] = to;
+            highest = Math.max(highest, Math.max(from, to));
+            return this;
+        }
+
+        /**
+         * Substitute each character of one string with the character in the
+         * same place in another
+         *
+         * @param from
+         *            the clear text characters
+         * @param to
+         *            the characters they are encoded as
+         * @return this builder
+         */
+        public Builder map(String from, String to) {
+            if (from.length() != to.length()) {
+                throw new IllegalArgumentException("both strings must be the same length");
+            }
+            for (int i = 0; i < from.length(); i++) {
+                map(from.charAt(i), to.charAt(i));
+            }
+            return this;
+        }
+
+        /**
+         * Shift every character in a range along by a number of places,
+         * wrapping around from the end of the range to the start. rot13 is
+         * rotate('a', 'z', 13).rotate('A', 'Z', 13) and rot47 is rotate('!',
+         * '~', 47).
+         *
+         * @param first
+         *            the first character of the range
+         * @param last
+         *            the last character of the range
+         * @param shift
+         *            the number of places to move each character, which may be
+         *            negative
+         * @return this builder
+         */
+        public Builder rotate(char first, char last, int shift) {
+            if (last < first) {
+                throw new IllegalArgumentException("the range ends before it starts");
+            }
+            int size = last - first + 1;
+            for (int c = first; c <= last; c++) {
+                map((char) c, (char) (first + Math.floorMod(c - first + shift, size)));
+            }
+            return this;
+        }
+
+        /**
+         * Record the substitutions an existing codec makes for a range of
+         * characters, so a codec that works one character at a time can be
+         * replaced by a table. Every character must encode to a single
+         * character that the codec decodes back again.
+         *
+         * @param codec
+         *            the codec to copy
+         * @param first
+         *            the first character of the range
+         * @param last
+         *            the last character of the range
+         * @return this builder
+         * @throws IllegalArgumentException
+         *             thrown if the codec does not substitute one character
+         *             for another in the range
+         */
+        public Builder copy(Codec codec, char first, char last) {
+            for (int c = first; c <= last; c++) {
+                String clear = String.valueOf((char) c);
+                String encoded = codec.encode(clear);
+                if (encoded.length() != 1) {
+                    throw new IllegalArgumentException(describe((char) c) + " encodes to " + encoded.length()
+                            + " characters");
+                }
+                if (!clear.equals(codec.decode(encoded))) {
+                    throw new IllegalArgumentException(describe((char) c) + " encodes to "
+                            + describe(encoded.charAt(0)) + " which does not decode back to it");
+                }
+                map((char) c, encoded.charAt(0));
+            }
+            return this;
+        }
+
+        /**
+         * Compile the substitutions into a codec
+         *
+         * @return the codec
+         * @throws IllegalArgumentException
+         *             thrown if two characters encode to the same character,
+         *             in which case messages could not be decoded
+         */
+        public SubstitutionCodec build() {
+            char[] encode = new char[highest + 1];
+            char[] decode = new char[highest + 1];
+            boolean[] used = new boolean[highest + 1];
+            for (int c = 0; c <= highest; c++) {
+                encode[c] = substitutions[c] < 0 ? (char) c : (char) substitutions[c];
+            }
+            /*
+             * Every substitution lies inside the table, so if no two
+             * characters in it share an encoding the table is a permutation
+             * and characters outside it can still be left alone
+             */
+            for (int c = 0; c <= highest; c++) {
+                char e = encode[c];
+                if (used[e]) {
+                    throw new IllegalArgumentException(describe(decode[e]) + " and " + describe((char) c)
+                            + " both encode to " + describe(e));
+                }
+                used[e] = true;
+                decode[e] = (char) c;
+            }
+            return new SubstitutionCodec(encode, decode);
+        }
+
+        private static String describe(char c) {
+            return Character.isISOControl(c) || Character.isWhitespace(c)
+                    ? String.format("\\u%04x", (int) c) : "'" + c + "'";
+        }
+    }
+
+    private static final int LATIN1 = 256;
+
+    private final char[] encodeTable;
+    private final char[] decodeTable;
+    /* the same tables as bytes, or null if a substitution leaves ISO-8859-1 */
+    private final byte[] encodeBytes;
+    private final byte[] decodeBytes;
+
+    private SubstitutionCodec(char[] encodeTable, char[] decodeTable) {
+        this.encodeTable = encodeTable;
+        this.decodeTable = decodeTable;
+        encodeBytes = bytes(encodeTable);
+        decodeBytes = encodeBytes == null ? null : bytes(decodeTable);
+    }
+
+    private static byte[] bytes(char[] table) {
+        byte[] bytes = new byte[LATIN1];
+        for (int c = 0; c < LATIN1; c++) {
+            char substitute = c < table.length ? table[c] : (char) c;
+            if (substitute >= LATIN1) {
+                return null;
+            }
+            bytes[c] = (byte) substitute;
+        }
+        return bytes;
+    }
+
+    @Override
+    public String encode(String message) {
+        return substitute(encodeBytes, encodeTable, message);
+    }
+
+    @Override
+    public String decode(String message) {
+        return substitute(decodeBytes, decodeTable, message);
+    }
+
+    @Override
+    public boolean encode(CharBuffer message, CharBuffer encoded) {
+        return substitute(encodeTable, message, encoded);
+    }
+
+    @Override
+    public boolean decode(CharBuffer message, CharBuffer decoded) {
+        return substitute(decodeTable, message, decoded);
+    }
+
+    /*
+     * Characters that are not ISO-8859-1 come out of getBytes as '?', so a
+     * '?' that was not one to begin with means the message has to be done as
+     * chars instead
+     */
+    private static String substitute(byte[] bytes, char[] table, String message) {
+        if (bytes != null) {
+            byte[] latin1 = message.getBytes(StandardCharsets.ISO_8859_1);
+            if (latin1.length == message.length()) {
+                boolean replaced = false;
+                for (int i = 0; i < latin1.length; i++) {
+                    byte b = latin1[i];
+                    if (b == '?' && message.charAt(i) != '?') {
+                        replaced = true;
+                        break;
+                    }
+                    latin1[i] = bytes[b & 0xff];
+                }
+                if (!replaced) {
+                    return new String(latin1, StandardCharsets.ISO_8859_1);
+                }
+            }
+        }
+        char[] chars = message.toCharArray();
+        substitute(table, chars, 0, chars, 0, chars.length);
+        return new String(chars);
+    }
+
+    /*
+     * When the target has an array the message is copied into it in bulk and
+     * substituted in place, otherwise it is done a character at a time
+     */
+    private static boolean substitute(char[] table, CharBuffer message, CharBuffer target) {
+        int length = message.remaining();
+        if (length > target.remaining()) {
+            return false;
+        }
+        if (target.hasArray()) {
+            int offset = target.arrayOffset() + target.position();
+            message.get(target.array(), offset, length);
+            substitute(table, target.array(), offset, target.array(), offset, length);
+            target.position(target.position() + length);
+        } else {
+            int limit = table.length;
+            while (message.hasRemaining()) {
+                char c = message.get();
+                target.put(c < limit ? table[c] : c);
+            }
+        }
+        return true;
+    }
+
+    private static void substitute(char[] table, char[] from, int fromOffset, char[] to, int toOffset, int length) {
+        int limit = table.length;
+        for (int i = 0; i < length; i++) {
+            char c = from[fromOffset + i];
+            to[toOffset + i] = c < limit ? table[c] : c;
+        }
+    }
+}
@@ -22,11 +22,22 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
 import java.net.SocketException;
+import java.nio.CharBuffer;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.management.ObjectName;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
@@ -42,16 +53,33 @@ import javax.swing.border.EmptyBorder;
  *         field and button to send messages.
  *
  */
-public class Talk extends JFrame implements Receiver, ActionListener {
+public class Talk extends JFrame implements ReceivePipeline.Listener, ActionListener {
     private static final long serialVersionUID = 5709807099045135313L;
+    private static final Logger LOG = Logger.getLogger(Talk.class.getName());
+    private static final int MAX_SEARCH_HITS = 1000;
+    private static final long CLOSE_TIMEOUT = 1000;
     private String username;
     private Codec codec;
     private Transceiver transceiver;
+    private ReceivePipeline pipeline;
+    private Journal journal;
+    private CharBuffer outgoing = CharBuffer.allocate(1024);
+    private CharBuffer encoded = CharBuffer.allocate(1024);
     private JTextField inputMessage = new JTextField("", 50);
     private JButton send = new JButton("Send");
-    private LogField history = new LogField("", 50, 10);
+    private HistoryList history = new HistoryList("", 50, 10);
     private JCheckBox ignoreMyself = new JCheckBox();
     private MaxScrollBufferField bufferLength = new MaxScrollBufferField(10);
+    private JComboBox<String> rooms = new JComboBox<String>();
+    private JButton leaveRoom = new JButton("Leave Room");
+    private JTextField search = new JTextField("", 20);
+    private JLabel searchResult = new JLabel();
+    private long searchShown = Long.MAX_VALUE;
+    private String searchQuery;
+    private boolean updatingRooms;
+    private StatsPanel stats;
+    private ObjectName profilerName;
+    private ObjectName cacheName;
 
     /**
      * Initialize the UI using the given username and Codec. The Codec will be
@@ -64,6 +92,24 @@ public class Talk extends JFrame implements Receiver, ActionListener {
      *            The codec to use for encoding and decoding messages
      */
     public Talk(String username, Codec codec) {
+        this(username, codec, null);
+    }
+
+    /**
+     * Initialize the UI using the given username and a factory for Codecs.
+     * Received messages are decoded by several workers at once, each with its
+     * own Codec, which helps when the Codec is slow.
+     * 
+     * @param username
+     *            The username to prepend to each message
+     * @param codecs
+     *            Creates the codecs to use for encoding and decoding messages
+     */
+    public Talk(String username, Supplier<? extends Codec> codecs) {
+        this(username, codecs.get(), codecs);
+    }
+
+    private Talk(String username, Codec codec, Supplier<? extends Codec> codecs) {
         super("Windtalker");
         if (username.length() > 64) {
             this.username = username.substring(0, 64);
@@ -73,8 +119,52 @@ public class Talk extends JFrame implements Receiver, ActionListener {
         setPreferredSize(new Dimension(800, 400));
         setLocation(200, 100);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                shutdown();
+            }
+        });
 
+        /* windtalker.profile=false stops the codec being timed */
+        CodecProfiler profiler = null;
+        if (Boolean.parseBoolean(System.getProperty("windtalker.profile", "true"))) {
+            profiler = new CodecProfiler();
+            profilerName = Jmx.register(profiler, "CodecProfiler");
+            if (codecs != null) {
+                benchmark(profiler, codecs.get());
+            }
+            codec = profiler.wrap(codec);
+            if (codecs != null) {
+                codecs = profiler.wrap(codecs);
+            }
+        }
+
+        /* windtalker.codecCache is the number of results to remember, 0 turns the cache off */
+        int cacheEntries = Integer.getInteger("windtalker.codecCache", CodecCache.DEFAULT_ENTRIES);
+        if (cacheEntries > 0) {
+            CodecCache cache = new CodecCache(cacheEntries, CodecCache.DEFAULT_CHARS);
+            cacheName = Jmx.register(cache, "CodecCache");
+            codec = cache.wrap(codec);
+            if (codecs != null) {
+                codecs = cache.wrap(codecs);
+            }
+        }
         this.codec = codec;
+        int queueDepth = Integer.getInteger("windtalker.queueDepth", ReceivePipeline.DEFAULT_QUEUE_DEPTH);
+        BackPressure policy = BackPressure
+                .valueOf(System.getProperty("windtalker.backPressure", "drop_oldest").toUpperCase());
+        int frameRate = Integer.getInteger("windtalker.frameRate", ReceivePipeline.DEFAULT_FRAME_RATE);
+        int workers = Integer.getInteger("windtalker.decodeWorkers", Runtime.getRuntime().availableProcessors());
+        if (codecs == null) {
+            pipeline = new ReceivePipeline(codec, this, queueDepth, policy, frameRate, workers);
+        } else {
+            pipeline = new ReceivePipeline(codecs, this, queueDepth, policy, frameRate, workers);
+        }
+        /* nobody types this fast, so anything faster is a program flooding the room */
+        int rateLimit = Integer.getInteger("windtalker.rateLimit", 50);
+        pipeline.setRateLimit(rateLimit, Integer.getInteger("windtalker.rateBurst", 2 * rateLimit));
+        pipeline.setRepeatLimit(Integer.getInteger("windtalker.repeatLimit", 5));
 
         JPanel mainPanel = new JPanel(new BorderLayout());
         setContentPane(mainPanel);
@@ -87,6 +177,12 @@ public class Talk extends JFrame implements Receiver, ActionListener {
         optionsPanel.setLayout(new GridLayout(0, 4));
         optionsPanel.add(new JLabel("Ignore Sent Messages:"));
         optionsPanel.add(ignoreMyself);
+        ignoreMyself.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                pipeline.setIgnoreSelf(ignoreMyself.isSelected());
+            }
+        });
         optionsPanel.add(new JLabel("History Buffer Length:"));
         optionsPanel.add(bufferLength);
         bufferLength.addFocusListener(new FocusListener() {
@@ -99,7 +195,47 @@ public class Talk extends JFrame implements Receiver, ActionListener {
                 history.setMaxLength(bufferLength.getLength());
             }
         });
-        mainPanel.add(optionsPanel, BorderLayout.NORTH);
+        optionsPanel.add(new JLabel("Room:"));
+        optionsPanel.add(rooms);
+        rooms.setEditable(true);
+        rooms.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Object selected = rooms.getSelectedItem();
+                if (!updatingRooms && selected != null) {
+                    changeRoom(selected.toString().trim());
+                }
+            }
+        });
+        optionsPanel.add(leaveRoom);
+        leaveRoom.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                leaveRoom();
+            }
+        });
+
+        /*
+         * Searching the history goes under the options, pressing enter again
+         * moves on to the next older match
+         */
+        JPanel searchPanel = new JPanel();
+        searchPanel.setLayout(new BoxLayout(searchPanel, BoxLayout.X_AXIS));
+        searchPanel.add(new JLabel("Search History: "));
+        searchPanel.add(search);
+        searchPanel.add(searchResult);
+        search.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                search();
+            }
+        });
+        searchResult.setBorder(new EmptyBorder(0, 5, 0, 0));
+
+        JPanel northPanel = new JPanel(new BorderLayout());
+        northPanel.add(optionsPanel, BorderLayout.NORTH);
+        northPanel.add(searchPanel, BorderLayout.SOUTH);
+        mainPanel.add(northPanel, BorderLayout.NORTH);
 
         /*
          * This is the text area where the message history appears
@@ -117,35 +253,231 @@ public class Talk extends JFrame implements Receiver, ActionListener {
 
         sendPanel.add(send);
         send.addActionListener(this);
-        mainPanel.add(sendPanel, BorderLayout.SOUTH);
+
+        /*
+         * The statistics go under the send field
+         */
+        JPanel southPanel = new JPanel(new BorderLayout());
+        southPanel.add(sendPanel, BorderLayout.NORTH);
+        stats = new StatsPanel(pipeline, profiler);
+        southPanel.add(stats, BorderLayout.SOUTH);
+        mainPanel.add(southPanel, BorderLayout.SOUTH);
+    }
+
+    /*
+     * Stop receiving, deliver what has already arrived, then close the journal
+     * and remove the MBeans this window registered. Runs before the window
+     * closes.
+     */
+    private void shutdown() {
+        stats.stop();
+        if (transceiver != null) {
+            transceiver.setJournal(null);
+            try {
+                transceiver.close();
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Could not close the transceiver", ex);
+            }
+        }
+        if (!pipeline.close(CLOSE_TIMEOUT)) {
+            LOG.warning("Some received messages were not delivered before closing");
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Could not close the message journal", ex);
+            }
+            journal = null;
+        }
+        Jmx.unregister(profilerName);
+        Jmx.unregister(cacheName);
+    }
+
+    /*
+     * Time a spare codec from the factory on a background thread, so the
+     * statistics can say early on whether it will keep up without holding up
+     * the window or touching the codecs in use. Stateful codecs are skipped,
+     * as their state is tied to the messages they have seen.
+     * windtalker.benchmark is how long to time it for in milliseconds, 0 skips
+     * the benchmark.
+     */
+    private static void benchmark(final CodecProfiler profiler, final Codec codec) {
+        final long millis = Long.getLong("windtalker.benchmark", 250);
+        if (millis <= 0 || codec.getClass().isAnnotationPresent(Stateful.class)) {
+            return;
+        }
+        ExecutionModel.PLATFORM.start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    LOG.info("Codec " + profiler.benchmark(codec, millis * 2, millis));
+                } catch (RuntimeException ex) {
+                    LOG.log(Level.WARNING, "Codec benchmark failed", ex);
+                }
+            }
+        }, "windtalker-benchmark");
     }
 
     /**
      * Display the UI and start the network transceiver
      */
     public void run() {
+        run(null);
+    }
+
+    /**
+     * Display the UI and start the transceiver on a transport of your own,
+     * such as one from a LoopbackNetwork, so that several Talk windows can
+     * chat inside one program
+     *
+     * @param transport
+     *            the transport to send and receive on, or null for the network
+     */
+    public void run(Transport transport) {
+        openJournal();
         try {
-            transceiver = new Transceiver(this);
+            transceiver = transport == null ? new Transceiver(pipeline) : new Transceiver(pipeline, transport);
         } catch (SocketException ex) {
             JOptionPane.showMessageDialog(null, "Failed to start network stack: " + ex.getMessage(), "Error",
                     JOptionPane.INFORMATION_MESSAGE);
             return;
         }
+        transceiver.setJournal(journal);
+        stats.watch(transceiver);
+        rooms.setEnabled(transceiver.hasRooms());
+        leaveRoom.setEnabled(transceiver.hasRooms());
+        if (transceiver.hasRooms()) {
+            showRooms();
+        }
 
         pack();
         setVisible(true);
     }
 
+    /*
+     * Join a room, or switch to one that has already been joined, and send to
+     * it from now on
+     */
+    private void changeRoom(String room) {
+        if (room.isEmpty() || room.equals(transceiver.getRoom())) {
+            return;
+        }
+        try {
+            transceiver.setRoom(room);
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(null, "Could not join " + room + ": " + ex.getMessage(), "Error",
+                    JOptionPane.INFORMATION_MESSAGE);
+        }
+        showRooms();
+    }
+
+    /*
+     * Leave the current room and go back to the room joined before it
+     */
+    private void leaveRoom() {
+        String current = transceiver.getRoom();
+        String previous = null;
+        for (String room : transceiver.getRooms()) {
+            if (!room.equals(current)) {
+                previous = room;
+            }
+        }
+        if (previous == null) {
+            JOptionPane.showMessageDialog(null, "Join another room before leaving " + current, "Error",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        try {
+            transceiver.setRoom(previous);
+            transceiver.leaveRoom(current);
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(null, "Could not leave " + current + ": " + ex.getMessage(), "Error",
+                    JOptionPane.INFORMATION_MESSAGE);
+        }
+        showRooms();
+    }
+
+    private void showRooms() {
+        updatingRooms = true;
+        try {
+            rooms.removeAllItems();
+            for (String room : transceiver.getRooms()) {
+                rooms.addItem(room);
+            }
+            rooms.setSelectedItem(transceiver.getRoom());
+        } finally {
+            updatingRooms = false;
+        }
+    }
+
+    /*
+     * Show the newest match for a new query, or the next older match when the
+     * same query is searched again, going back to the newest after the oldest
+     */
+    private void search() {
+        String query = search.getText();
+        long[] hits = history.search(query, MAX_SEARCH_HITS);
+        if (hits.length == 0) {
+            searchResult.setText(isBlank(query) ? "" : "No matches");
+            searchQuery = null;
+            return;
+        }
+        int hit = 0;
+        if (query.equals(searchQuery)) {
+            while (hit < hits.length && hits[hit] >= searchShown) {
+                hit++;
+            }
+            if (hit == hits.length) {
+                hit = 0;
+            }
+        }
+        searchQuery = query;
+        searchShown = hits[hit];
+        history.show(searchShown);
+        searchResult.setText((hit + 1) + " of " + hits.length + (hits.length == MAX_SEARCH_HITS ? "+" : ""));
+    }
+
+    /**
+     * Open the message journal and fill the history with the most recent
+     * messages from the last run. The journal is kept in ~/.windtalker/journal
+     * unless the windtalker.journal property names another directory, or is
+     * set to "off".
+     */
+    private void openJournal() {
+        String location = System.getProperty("windtalker.journal",
+                new File(new File(System.getProperty("user.home"), ".windtalker"), "journal").getPath());
+        if (location.equalsIgnoreCase("off")) {
+            return;
+        }
+        try {
+            journal = new Journal(new File(location),
+                    Integer.getInteger("windtalker.journal.segmentSize", Journal.DEFAULT_SEGMENT_SIZE),
+                    Integer.getInteger("windtalker.journal.segments", Journal.DEFAULT_MAX_SEGMENTS));
+            journal.replay(bufferLength.getLength(), false, new Journal.Visitor() {
+                @Override
+                public void visit(Journal.Record record) {
+                    if (!(record.isSelf() && ignoreMyself.isSelected())) {
+                        history.log(codec.decode(new String(record.getPayload(), Transceiver.CHARSET)));
+                    }
+                }
+            });
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Could not open message journal", ex);
+            journal = null;
+        }
+    }
+
     /*
      * (non-Javadoc)
      * 
-     * @see co.andrewbates.windtalker.Receiver#receive(java.lang.String,
-     * boolean)
+     * @see co.andrewbates.windtalker.ReceivePipeline.Listener#deliver(java.util.
+     * List)
      */
     @Override
-    public void receive(String message, boolean self) {
-        if (!(self && ignoreMyself.isSelected())) {
-            history.log(codec.decode(message));
+    public void deliver(List<Message> messages) {
+        for (Message message : messages) {
+            history.log(message.getText());
         }
     }
 
@@ -157,10 +489,11 @@ public class Talk extends JFrame implements Receiver, ActionListener {
      */
     @Override
     public void actionPerformed(ActionEvent event) {
+        String text = inputMessage.getText();
         try {
             /* do nothing if the input field is blank */
-            if (!inputMessage.getText().matches("^\\s*$")) {
-                transceiver.send(codec.encode(username + ": " + inputMessage.getText()));
+            if (!isBlank(text)) {
+                send(text);
             }
         } catch (MessageTooLongException ex) {
             JOptionPane.showMessageDialog(null, ex.getMessage(), "Error", JOptionPane.INFORMATION_MESSAGE);
@@ -169,4 +502,32 @@ public class Talk extends JFrame implements Receiver, ActionListener {
         inputMessage.setText("");
     }
 
+    private static boolean isBlank(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Codecs that can encode into a buffer get the message built in a reused
+     * buffer rather than a new String
+     */
+    private void send(String text) throws MessageTooLongException {
+        if (!(codec instanceof BufferCodec)) {
+            transceiver.send(codec.encode(username + ": " + text));
+            return;
+        }
+        int length = username.length() + 2 + text.length();
+        if (outgoing.capacity() < length) {
+            outgoing = CharBuffer.allocate(length);
+        }
+        outgoing.clear();
+        outgoing.put(username).put(": ").put(text).flip();
+        encoded = BufferCodec.encode((BufferCodec) codec, outgoing, encoded);
+        transceiver.send(encoded);
+    }
+
 }
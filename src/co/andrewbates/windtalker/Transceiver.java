@@ -16,31 +16,273 @@
 
 package co.andrewbates.windtalker;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.InterfaceAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
-import java.net.UnknownHostException;
-import java.util.Enumeration;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+import javax.management.ObjectName;
 
 /**
  * @author Andrew Bates
  * 
  *         The Transciever class is what actually sends and receives messages on
- *         the network.
+ *         the network. The actual datagram I/O is delegated to a Transport, so
+ *         the I/O engine can be swapped out without touching the rest of the
+ *         program.
+ * 
+ *         Messages that are too large for one datagram are split into numbered
+ *         fragments no larger than the network's MTU and put back together by
+ *         the receiving transceiver.
+ * 
+ *         Batching can be turned on for programs that send bursts of short
+ *         messages. Sent messages are then held for up to a linger time and
+ *         sent together in one datagram, and the receiving transceiver splits
+ *         them back into individual messages.
+ * 
+ *         Compression can be turned on for programs that send long messages.
+ *         Encoded messages at least as long as the threshold are compressed
+ *         with DEFLATE and flagged in the frame type, and every transceiver
+ *         inflates flagged messages whether or not it compresses its own.
+ * 
+ *         In reliable mode every datagram is given a sequence number and a
+ *         copy is kept in a send window. With rooms, each room gets a stream
+ *         of its own with its own id, sequence numbers and window, so a
+ *         receiver never sees a gap for messages sent to another room and a
+ *         datagram is only ever sent again to the room it was first sent to.
+ *         Receivers put each stream's datagrams
+ *         back in order, throw away duplicates and send a NACK for any that
+ *         are missing, which the sender answers by sending them again. The
+ *         Receiver only ever sees an ordered stream without duplicates, and
+ *         only loses messages that stayed missing past the gap timeout.
+ * 
+ *         Every transceiver keeps counts of the datagrams, bytes and messages
+ *         it sends and receives, and publishes them through JMX.
  */
-public class Transceiver implements Runnable {
-    private DatagramSocket socket;
-    private InetAddress localAddress;
-    private InetAddress broadcast;
+public class Transceiver implements Transport.Handler, TransceiverMBean, Closeable {
+    /**
+     * The I/O engines that are available to a Transceiver
+     */
+    public enum Engine {
+        /**
+         * A blocking DatagramSocket with one receive thread per transceiver
+         */
+        BLOCKING,
+        /**
+         * A non-blocking DatagramChannel serviced by a selector thread that is
+         * shared by every transceiver
+         */
+        SELECTOR,
+        /**
+         * Like SELECTOR, but sends to multicast groups instead of the
+         * broadcast address so that the network can be divided into rooms
+         */
+        MULTICAST;
+
+        /**
+         * The engine to use when none is given. Can be set with the
+         * windtalker.engine system property.
+         * 
+         * @return the default engine
+         */
+        public static Engine getDefault() {
+            return valueOf(System.getProperty("windtalker.engine", SELECTOR.name()).toUpperCase());
+        }
+
+        Transport open(int port, List<BroadcastAddress> addresses) throws IOException {
+            /* only the selector engine can use more than one interface */
+            switch (this) {
+            case BLOCKING:
+                return new BlockingTransport(port, addresses.get(0));
+            case MULTICAST:
+                return new MulticastTransport(SelectorLoop.shared(), port,
+                        System.getProperty("windtalker.room", DEFAULT_ROOM), addresses.get(0));
+            default:
+                return new ChannelTransport(SelectorLoop.shared(), port, addresses);
+            }
+        }
+    }
+
+    /**
+     * The UDP port Windtalker sends and receives on
+     */
+    public static final int PORT = 5001;
+
+    /**
+     * The room joined by the multicast engine unless the windtalker.room
+     * system property names another
+     */
+    public static final String DEFAULT_ROOM = "lobby";
+
+    /**
+     * The charset messages are encoded with on the network
+     */
+    public static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    /**
+     * The longest message, in characters, that can be sent unless it is
+     * changed with setMaxMessageSize
+     */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 65536;
+
+    /**
+     * The number of datagrams a reliable transceiver keeps to send again, and
+     * the number a receiver holds while it waits for a missing one
+     */
+    public static final int RELIABLE_WINDOW = 1024;
+
+    /**
+     * The shortest encoded message, in bytes, that is compressed when
+     * compression is turned on without a threshold
+     */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 256;
+
+    private static final int MAX_FRAGMENTS = 0xffff;
+    private static final int MAX_PARTIAL_MESSAGES = 64;
+    private static final long REASSEMBLY_TIMEOUT = 5000;
+    private static final long TICK_INTERVAL = 20;
+    private static final long NACK_INTERVAL = 50;
+    private static final long RESEND_HOLDOFF = 20;
+    private static final long GAP_TIMEOUT = 2000;
+    private static final long HEARTBEAT_INTERVAL = 1000;
+    private static final long STREAM_TIMEOUT = 60000;
+    private static final int MAX_STREAMS = 256;
+
+    private static final Logger LOG = Logger.getLogger(Transceiver.class.getName());
+
+    private static ScheduledExecutorService timer;
+
+    /*
+     * The datagrams sent reliably to one room, with the heartbeat bookkeeping
+     * for them
+     */
+    private static final class Stream {
+        final long id;
+        final String room;
+        final SendWindow window = new SendWindow(RELIABLE_WINDOW, RESEND_HOLDOFF, 0);
+        int previousLast;
+        int lastHeartbeat;
+        long heartbeatSent;
+
+        Stream(long id, String room) {
+            this.id = id;
+            this.room = room;
+        }
+    }
+
+    private Transport transport;
     private Receiver receiver;
-    private int maxMessageSize = 1024;
+    private Journal journal;
+    private int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+    private CharsetDecoder decoder = CHARSET.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer received = CharBuffer.allocate(1024);
+    private CharsetEncoder encoder = CHARSET.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer chars = CharBuffer.allocate(256);
+    private ByteBuffer outgoing = ByteBuffer.allocateDirect(maxMessageBytes());
+    private ByteBuffer frame;
+    private final long senderId;
+    private int nextMessageId;
+    private ByteBuffer batch;
+    private int batchCount;
+    private int batchBytes;
+    private long lingerMillis;
+    private ScheduledFuture<?> lingerFlush;
+    private final Runnable lingerTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (RuntimeException ex) {
+                LOG.log(Level.WARNING, "Could not send batch", ex);
+            }
+        }
+    };
+    private long batchesSent;
+    private long batchedMessages;
+    private int largestBatch;
+    private Reassembler reassembler = new Reassembler(MAX_PARTIAL_MESSAGES, REASSEMBLY_TIMEOUT, maxMessageBytes());
+    private int compressionThreshold;
+    private Compressor compressor;
+    private ByteBuffer compressed;
+    private Compressor inflater = new Compressor(Deflater.DEFAULT_COMPRESSION, null);
+    private long compressedMessages;
+    private long compressedBytesIn;
+    private long compressedBytesOut;
+    private boolean reliable;
+    private final Map<String, Stream> streams = new ConcurrentHashMap<String, Stream>();
+    private final Map<Long, Stream> streamIds = new ConcurrentHashMap<Long, Stream>();
+    private final Sequencer sequencer = new Sequencer(RELIABLE_WINDOW, NACK_INTERVAL, GAP_TIMEOUT, STREAM_TIMEOUT,
+            MAX_STREAMS);
+    private final Sequencer.Output sequenced = new Sequencer.Output() {
+        @Override
+        public void release(long sender, InetSocketAddress source, byte type, ByteBuffer body) {
+            dispatch(type, sender, body, source, isSelf(sender), System.currentTimeMillis());
+        }
+
+        @Override
+        public void nack(long sender, int first, int count) {
+            synchronized (control) {
+                control.clear();
+                Frame.putHeader(control, Frame.NACK, senderId);
+                control.putLong(sender).putInt(first).putShort((short) count).flip();
+                sendControl();
+            }
+        }
+    };
+    private final ByteBuffer control = ByteBuffer.allocateDirect(Frame.NACK_SIZE);
+    private ScheduledFuture<?> reliabilityTick;
+    private final Runnable tickTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                tick();
+            } catch (RuntimeException ex) {
+                LOG.log(Level.WARNING, "Reliable delivery failed", ex);
+            }
+        }
+    };
+
+    private final LongAdder packetsIn = new LongAdder();
+    private final LongAdder packetsOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder retransmits = new LongAdder();
+    private final PacketTrace trace = PacketTrace.fromProperties();
+    private ObjectName mbeanName;
 
     /**
-     * Initialize a new transceiver
+     * Initialize a new transceiver using the default engine
      * 
      * @param receiver
      *            The receiver that will display received messages
@@ -49,64 +291,818 @@ public class Transceiver implements Runnable {
      *             network connection
      */
     public Transceiver(Receiver receiver) throws SocketException {
-        setupNetwork();
-        this.receiver = receiver;
-        new Thread(this).start();
+        this(receiver, Engine.getDefault());
     }
 
     /**
-     * Find the local broadcast address and start listening on that interface
+     * Initialize a new transceiver using the given engine
      * 
+     * @param receiver
+     *            The receiver that will display received messages
+     * @param engine
+     *            The I/O engine used to send and receive datagrams
      * @throws SocketException
-     *             thrown if anything goes wrong when trying to listen on the
-     *             local interface
+     *             thrown if any problem occurs while attempting to start the
+     *             network connection
+     */
+    public Transceiver(Receiver receiver, Engine engine) throws SocketException {
+        this(receiver, open(engine, defaultAddresses()));
+    }
+
+    /**
+     * Initialize a new transceiver using the given engine on a chosen set of
+     * network interfaces
+     * 
+     * @param receiver
+     *            The receiver that will display received messages
+     * @param engine
+     *            The I/O engine used to send and receive datagrams
+     * @param interfaces
+     *            The interfaces to send on, see getBroadcastInterfaces. Only
+     *            the SELECTOR engine uses more than the first.
+     * @throws SocketException
+     *             thrown if any problem occurs while attempting to start the
+     *             network connection
      */
-    private void setupNetwork() throws SocketException {
-        System.setProperty("java.net.preferIPv4Stack", "true");
+    public Transceiver(Receiver receiver, Engine engine, Collection<NetworkInterface> interfaces)
+            throws SocketException {
+        this(receiver, open(engine, BroadcastAddress.find(interfaces)));
+    }
 
+    /**
+     * Initialize a new transceiver on top of an existing transport
+     * 
+     * @param receiver
+     *            The receiver that will display received messages
+     * @param transport
+     *            The transport used to send and receive datagrams
+     * @throws SocketException
+     *             thrown if any problem occurs while attempting to start the
+     *             network connection
+     */
+    public Transceiver(Receiver receiver, Transport transport) throws SocketException {
+        this.receiver = receiver;
+        this.transport = transport;
+        Random random = new Random();
+        senderId = random.nextLong();
+        nextMessageId = random.nextInt();
+        frame = ByteBuffer.allocateDirect(transport.getMaxDatagramSize());
+        batch = ByteBuffer.allocateDirect(frame.capacity());
         try {
-            this.socket = new DatagramSocket(5001, InetAddress.getByName("0.0.0.0"));
-        } catch (UnknownHostException ex) {
-            throw new RuntimeException("Failed to resolve address 0.0.0.0: " + ex.getMessage());
-        }
-
-        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
-        while (interfaces.hasMoreElements()) {
-            NetworkInterface networkInterface = interfaces.nextElement();
-            if (networkInterface.isLoopback())
-                continue; // Don't want to broadcast to the loopback interface
-            for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
-                InetAddress broadcast = interfaceAddress.getBroadcast();
-                if (broadcast == null)
-                    continue;
+            transport.start(this);
+        } catch (IOException ex) {
+            throw socketException(ex);
+        }
+        configure();
+        mbeanName = Jmx.register(this, "Transceiver");
+    }
+
+    /*
+     * Apply the windtalker.reliable, windtalker.compress,
+     * windtalker.receiveBuffer and windtalker.sendBuffer system properties
+     */
+    private void configure() {
+        setReliable(Boolean.getBoolean("windtalker.reliable"));
+        Integer threshold = Integer.getInteger("windtalker.compress");
+        if (threshold != null) {
+            setCompression(threshold);
+        }
+        try {
+            Integer receiveBuffer = Integer.getInteger("windtalker.receiveBuffer");
+            if (receiveBuffer != null) {
+                setReceiveBufferSize(receiveBuffer);
+            }
+            Integer sendBuffer = Integer.getInteger("windtalker.sendBuffer");
+            if (sendBuffer != null) {
+                setSendBufferSize(sendBuffer);
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Could not set the socket buffer sizes", ex);
+        }
+    }
+
+    /**
+     * Record every message sent and received in a journal
+     * 
+     * @param journal
+     *            the journal to write to, or null to stop journaling
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Set the longest message that can be sent. Longer messages cause a
+     * MessageTooLongException.
+     * 
+     * @param maxMessageSize
+     *            the maximum number of characters in a message
+     */
+    public synchronized void setMaxMessageSize(int maxMessageSize) {
+        if (maxMessageSize < 1) {
+            throw new IllegalArgumentException("maximum message size must be a positive number");
+        }
+        this.maxMessageSize = maxMessageSize;
+        outgoing = ByteBuffer.allocateDirect(maxMessageBytes());
+        if (compressed != null) {
+            compressed = ByteBuffer.allocateDirect(outgoing.capacity());
+        }
+        reassembler.setMaxMessageBytes(maxMessageBytes());
+    }
+
+    /**
+     * @return the maximum number of characters in a message
+     */
+    @Override
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
 
-                // Use the address
-                this.broadcast = broadcast;
-                this.localAddress = interfaceAddress.getAddress();
+    /**
+     * Set the largest datagram that will be sent. Messages that do not fit are
+     * split into fragments of this size. This defaults to the MTU of the
+     * network interface and only needs to be changed if some part of the path
+     * has a smaller MTU.
+     * 
+     * @param maxDatagramSize
+     *            the maximum number of bytes in a datagram
+     */
+    public synchronized void setMaxDatagramSize(int maxDatagramSize) {
+        if (maxDatagramSize <= Frame.SEQUENCED_HEADER_SIZE + Frame.FRAGMENT_HEADER_SIZE - Frame.HEADER_SIZE) {
+            throw new IllegalArgumentException("datagrams must be larger than the fragment header");
+        }
+        flush();
+        frame = ByteBuffer.allocateDirect(maxDatagramSize);
+        batch = ByteBuffer.allocateDirect(maxDatagramSize);
+    }
+
+    /**
+     * @return the maximum number of bytes in a datagram
+     */
+    @Override
+    public int getMaxDatagramSize() {
+        return frame.capacity();
+    }
+
+    /**
+     * Turn on batching. Messages that are sent within the linger time of each
+     * other are sent as one datagram, until the batch reaches the byte budget.
+     * Messages too large to share a datagram are never batched. Batching is off
+     * by default.
+     * 
+     * @param lingerMillis
+     *            how long a message may wait for others to join its batch, 0
+     *            turns batching off
+     * @param maxBytes
+     *            the most bytes of messages to put in one batch, this is
+     *            limited to the maximum datagram size
+     */
+    public synchronized void setBatching(long lingerMillis, int maxBytes) {
+        if (lingerMillis < 0) {
+            throw new IllegalArgumentException("linger time can not be negative");
+        }
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("batch size must be a positive number");
+        }
+        flush();
+        this.lingerMillis = lingerMillis;
+        this.batchBytes = maxBytes;
+    }
+
+    /**
+     * @return how long a message may wait to be batched, 0 if batching is off
+     */
+    public long getLingerMillis() {
+        return lingerMillis;
+    }
+
+    /**
+     * Send the messages waiting in the current batch straight away
+     */
+    public synchronized void flush() {
+        if (batchCount == 0) {
+            return;
+        }
+        if (lingerFlush != null) {
+            lingerFlush.cancel(false);
+            lingerFlush = null;
+        }
+        batchesSent++;
+        batchedMessages += batchCount;
+        largestBatch = Math.max(largestBatch, batchCount);
+        batchCount = 0;
+        batch.flip();
+        try {
+            transmit(batch);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    /**
+     * @return the number of batch datagrams sent
+     */
+    @Override
+    public synchronized long getBatchesSent() {
+        return batchesSent;
+    }
+
+    /**
+     * @return the number of messages sent in batches
+     */
+    public synchronized long getBatchedMessages() {
+        return batchedMessages;
+    }
+
+    /**
+     * @return the average number of messages in a batch
+     */
+    @Override
+    public synchronized double getAverageBatchSize() {
+        return batchesSent == 0 ? 0 : (double) batchedMessages / batchesSent;
+    }
+
+    /**
+     * @return the most messages sent in one batch
+     */
+    public synchronized int getLargestBatch() {
+        return largestBatch;
+    }
+
+    /**
+     * Compress long messages with the built in chat dictionary. Can also be
+     * turned on with the windtalker.compress system property, which is the
+     * threshold.
+     * 
+     * @param threshold
+     *            the shortest encoded message in bytes to compress, 0 turns
+     *            compression off
+     */
+    public void setCompression(int threshold) {
+        setCompression(threshold, Compressor.CHAT_DICTIONARY);
+    }
+
+    /**
+     * Compress long messages with a preset dictionary. A dictionary of text
+     * that is common in the messages being sent lets even short messages
+     * compress well. Receivers need the same dictionary to inflate the
+     * messages, every transceiver knows the built in chat dictionary.
+     * 
+     * @param threshold
+     *            the shortest encoded message in bytes to compress, 0 turns
+     *            compression off
+     * @param dictionary
+     *            the preset dictionary, or null for none
+     */
+    public void setCompression(int threshold, byte[] dictionary) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("compression threshold can not be negative");
+        }
+        byte[] copy = dictionary == null ? null : dictionary.clone();
+        synchronized (this) {
+            if (compressor != null) {
+                compressor.end();
+                compressor = null;
+            }
+            compressionThreshold = threshold;
+            if (threshold > 0) {
+                compressor = new Compressor(Deflater.BEST_COMPRESSION, copy);
+                if (compressed == null || compressed.capacity() < outgoing.capacity()) {
+                    compressed = ByteBuffer.allocateDirect(outgoing.capacity());
+                }
+            }
+        }
+        /*
+         * Inflate with the same dictionary. The locks are taken one after the
+         * other because a Receiver may send while the sequencer's is held.
+         */
+        if (threshold > 0) {
+            synchronized (sequencer) {
+                inflater.end();
+                inflater = new Compressor(Deflater.DEFAULT_COMPRESSION, copy);
+            }
+        }
+    }
+
+    /**
+     * @return the shortest encoded message that is compressed, 0 if
+     *         compression is off
+     */
+    @Override
+    public synchronized int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * @return the number of messages sent compressed
+     */
+    @Override
+    public synchronized long getCompressedMessages() {
+        return compressedMessages;
+    }
+
+    /**
+     * @return the size of the compressed messages sent as a fraction of their
+     *         size before compression, or 1 if none have been compressed
+     */
+    @Override
+    public synchronized double getCompressionRatio() {
+        return compressedBytesIn == 0 ? 1 : (double) compressedBytesOut / compressedBytesIn;
+    }
+
+    /**
+     * Turn reliable delivery on or off. In reliable mode every datagram sent
+     * carries a sequence number and the last RELIABLE_WINDOW datagrams are
+     * kept so they can be sent again when a receiver misses them. Receiving
+     * in order from reliable senders does not need this to be turned on.
+     * Reliable mode can also be turned on with the windtalker.reliable system
+     * property.
+     * 
+     * @param reliable
+     *            true to send reliably
+     */
+    public void setReliable(boolean reliable) {
+        synchronized (this) {
+            if (reliable == this.reliable) {
                 return;
             }
+            /* a waiting batch already has a header of the old kind */
+            flush();
+            this.reliable = reliable;
+        }
+        /* not while holding our own lock, a Receiver may send while the sequencer's is held */
+        if (reliable) {
+            synchronized (sequencer) {
+                startTicking();
+            }
+        }
+    }
+
+    /**
+     * @return true if datagrams are sent reliably
+     */
+    @Override
+    public synchronized boolean isReliable() {
+        return reliable;
+    }
+
+    /**
+     * Set the size of the socket buffer the operating system holds received
+     * datagrams in until they are read. Datagrams that arrive while it is full
+     * are dropped, so a larger buffer helps with bursts of traffic. The
+     * operating system may limit the size.
+     * 
+     * @param bytes
+     *            the buffer size in bytes
+     * @throws IOException
+     *             thrown if the buffer size could not be set
+     */
+    public void setReceiveBufferSize(int bytes) throws IOException {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("buffer size must be a positive number");
+        }
+        transport.setReceiveBufferSize(bytes);
+    }
+
+    /**
+     * Set the size of the socket buffer the operating system holds datagrams
+     * in until they are sent. The operating system may limit the size.
+     * 
+     * @param bytes
+     *            the buffer size in bytes
+     * @throws IOException
+     *             thrown if the buffer size could not be set
+     */
+    public void setSendBufferSize(int bytes) throws IOException {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("buffer size must be a positive number");
+        }
+        transport.setSendBufferSize(bytes);
+    }
+
+    @Override
+    public int getReceiveBufferSize() {
+        try {
+            return transport.getReceiveBufferSize();
+        } catch (IOException ex) {
+            return 0;
+        }
+    }
+
+    @Override
+    public int getSendBufferSize() {
+        try {
+            return transport.getSendBufferSize();
+        } catch (IOException ex) {
+            return 0;
         }
-        throw new RuntimeException("Could not find an available broadcast address");
+    }
+
+    /**
+     * @return the random id that identifies messages sent by this transceiver
+     */
+    public long getSenderId() {
+        return senderId;
+    }
+
+    /**
+     * @return true if the transport divides the network into rooms
+     */
+    public boolean hasRooms() {
+        return transport instanceof RoomTransport;
+    }
+
+    /**
+     * Start receiving messages sent to a room
+     * 
+     * @param room
+     *            the name of the room
+     * @throws IOException
+     *             thrown if the room could not be joined
+     * @throws UnsupportedOperationException
+     *             thrown if the transport does not support rooms
+     */
+    public void joinRoom(String room) throws IOException {
+        rooms().join(room);
+    }
+
+    /**
+     * Stop receiving messages sent to a room
+     * 
+     * @param room
+     *            the name of the room
+     * @throws IOException
+     *             thrown if the room could not be left
+     * @throws UnsupportedOperationException
+     *             thrown if the transport does not support rooms
+     */
+    public void leaveRoom(String room) throws IOException {
+        rooms().leave(room);
+        Stream stream = streams.remove(room);
+        if (stream != null) {
+            streamIds.remove(stream.id);
+        }
+    }
+
+    /**
+     * Send messages to a room from now on, joining it first if needed
+     * 
+     * @param room
+     *            the name of the room
+     * @throws IOException
+     *             thrown if the room could not be joined
+     * @throws UnsupportedOperationException
+     *             thrown if the transport does not support rooms
+     */
+    public synchronized void setRoom(String room) throws IOException {
+        /* a waiting batch belongs to the room it was sent in */
+        flush();
+        rooms().setRoom(room);
+    }
+
+    /**
+     * @return the room messages are sent to
+     * @throws UnsupportedOperationException
+     *             thrown if the transport does not support rooms
+     */
+    public String getRoom() {
+        return rooms().getRoom();
+    }
+
+    /**
+     * @return the rooms that have been joined
+     * @throws UnsupportedOperationException
+     *             thrown if the transport does not support rooms
+     */
+    public Set<String> getRooms() {
+        return rooms().getRooms();
+    }
+
+    private RoomTransport rooms() {
+        if (!hasRooms()) {
+            throw new UnsupportedOperationException("The network engine does not support rooms");
+        }
+        return (RoomTransport) transport;
+    }
+
+    private int maxMessageBytes() {
+        return (int) Math.ceil(maxMessageSize * (double) encoder.maxBytesPerChar());
+    }
+
+    private void record(ByteBuffer payload, InetSocketAddress source, boolean self, boolean sent) {
+        Journal journal = this.journal;
+        if (journal == null) {
+            return;
+        }
+        if (payload.remaining() > journal.getMaxPayloadSize()) {
+            errors.increment();
+            LOG.fine("Message of " + payload.remaining() + " bytes is too big for the journal, not recording it");
+            return;
+        }
+        try {
+            journal.append(System.currentTimeMillis(), source, self, sent, payload);
+        } catch (IOException ex) {
+            errors.increment();
+            LOG.log(Level.WARNING, "Journal failed, no longer recording messages", ex);
+            this.journal = null;
+        }
+    }
+
+    /**
+     * List the network interfaces that messages can be broadcast on
+     * 
+     * @return every interface that is up, is not the loopback interface and
+     *         has a broadcast address
+     * @throws SocketException
+     *             thrown if the interfaces could not be listed
+     */
+    public static List<NetworkInterface> getBroadcastInterfaces() throws SocketException {
+        List<NetworkInterface> interfaces = new ArrayList<NetworkInterface>();
+        for (BroadcastAddress address : BroadcastAddress.findAll()) {
+            interfaces.add(address.getInterface());
+        }
+        return interfaces;
+    }
+
+    /*
+     * The interfaces named by the windtalker.interfaces system property, which
+     * is either a comma separated list of interface names or "all". Without
+     * it only the first interface that can broadcast is used.
+     */
+    private static List<BroadcastAddress> defaultAddresses() throws SocketException {
+        String names = System.getProperty("windtalker.interfaces");
+        if (names == null) {
+            return Collections.singletonList(BroadcastAddress.find());
+        }
+        if (names.trim().equalsIgnoreCase("all")) {
+            List<BroadcastAddress> addresses = BroadcastAddress.findAll();
+            if (addresses.isEmpty()) {
+                throw new SocketException("Could not find an available broadcast address");
+            }
+            return addresses;
+        }
+        List<NetworkInterface> interfaces = new ArrayList<NetworkInterface>();
+        for (String name : names.split(",")) {
+            NetworkInterface networkInterface = NetworkInterface.getByName(name.trim());
+            if (networkInterface == null) {
+                throw new SocketException("No network interface named " + name.trim());
+            }
+            interfaces.add(networkInterface);
+        }
+        return BroadcastAddress.find(interfaces);
+    }
+
+    private static Transport open(Engine engine, List<BroadcastAddress> addresses) throws SocketException {
+        if (addresses.isEmpty()) {
+            throw new SocketException("No network interfaces were given");
+        }
+        try {
+            return engine.open(PORT, addresses);
+        } catch (IOException ex) {
+            throw socketException(ex);
+        }
+    }
+
+    private static SocketException socketException(IOException ex) {
+        if (ex instanceof SocketException) {
+            return (SocketException) ex;
+        }
+        SocketException wrapped = new SocketException(ex.getMessage());
+        wrapped.initCause(ex);
+        return wrapped;
     }
 
     /*
      * (non-Javadoc)
      * 
-     * @see java.lang.Runnable#run()
+     * @see co.andrewbates.windtalker.Transport.Handler#handle(java.nio.
+     * ByteBuffer, java.net.InetSocketAddress, boolean)
      */
-    public void run() {
-        byte[] payload = new byte[maxMessageSize];
-        DatagramPacket p = new DatagramPacket(payload, payload.length);
-        while (true) {
-            try {
-                socket.receive(p);
-                String message = new String(payload, 0, p.getLength());
-                receiver.receive(message, p.getAddress().equals(localAddress));
-                System.out.println("RX: " + new String(payload, 0, p.getLength()));
-            } catch (Exception ex) {
-                System.out.println(ex);
+    @Override
+    public void handle(ByteBuffer payload, InetSocketAddress source, boolean self) {
+        long now = System.currentTimeMillis();
+        packetsIn.increment();
+        bytesIn.add(payload.remaining());
+        if (trace != null) {
+            trace.trace(false, source, payload);
+        }
+        /*
+         * The reliability timer releases held datagrams too, so deliveries
+         * from both threads are made while holding the sequencer's lock
+         */
+        synchronized (sequencer) {
+            if (!Frame.isFrame(payload)) {
+                deliver(payload, source, self, now);
+                return;
+            }
+            byte type = Frame.type(payload);
+            long sender = Frame.sender(payload);
+            payload.position(payload.position() + Frame.HEADER_SIZE);
+            if (type == Frame.SEQUENCED) {
+                startTicking();
+                sequencer.add(sender, source, payload, now, sequenced);
+            } else if (type == Frame.NACK) {
+                resend(payload, now);
+            } else if (type == Frame.HEARTBEAT) {
+                if (payload.remaining() >= Frame.HEARTBEAT_SIZE - Frame.HEADER_SIZE) {
+                    startTicking();
+                    sequencer.heartbeat(sender, payload.getInt(), now, sequenced);
+                }
+            } else {
+                /*
+                 * The transport can only guess by comparing addresses, the
+                 * sender id says for certain whether we sent this
+                 */
+                dispatch(type, sender, payload, source, isSelf(sender), now);
+            }
+        }
+    }
+
+    /*
+     * Deliver the messages in a DATA, FRAGMENT or BATCH frame positioned after
+     * its header
+     */
+    private void dispatch(byte type, long sender, ByteBuffer payload, InetSocketAddress source, boolean self,
+            long now) {
+        boolean deflated = (type & Frame.COMPRESSED) != 0;
+        type &= ~Frame.COMPRESSED;
+        if (type == Frame.DATA) {
+            deliver(deflated ? inflate(payload) : payload, source, self, now);
+        } else if (type == Frame.FRAGMENT) {
+            ByteBuffer message = reassembler.add(sender, payload, now);
+            if (message != null) {
+                deliver(deflated ? inflate(message) : message, source, self, now);
+            }
+        } else if (type == Frame.BATCH) {
+            unbatch(payload, source, self, now);
+        } else {
+            /* a frame from a newer version that we don't understand */
+            errors.increment();
+        }
+    }
+
+    private ByteBuffer inflate(ByteBuffer message) {
+        try {
+            return inflater.inflate(message, maxMessageBytes());
+        } catch (DataFormatException ex) {
+            errors.increment();
+            LOG.log(Level.FINE, "Could not inflate a message", ex);
+            return null;
+        }
+    }
+
+    /*
+     * Answer a NACK if it is for us
+     */
+    private void resend(ByteBuffer nack, long now) {
+        if (nack.remaining() < Frame.NACK_SIZE - Frame.HEADER_SIZE) {
+            errors.increment();
+            return;
+        }
+        long target = nack.getLong();
+        int first = nack.getInt();
+        int count = nack.getShort() & 0xffff;
+        Stream stream = streamIds.get(target);
+        if (stream == null) {
+            return;
+        }
+        synchronized (stream.window) {
+            for (int i = 0; i < count; i++) {
+                ByteBuffer datagram = stream.window.resend(first + i, now);
+                if (datagram == null) {
+                    continue;
+                }
+                retransmits.increment();
+                try {
+                    emit(datagram, stream.room);
+                } catch (IOException ex) {
+                    LOG.log(Level.WARNING, "Could not send a datagram again", ex);
+                    return;
+                }
+            }
+        }
+    }
+
+    /*
+     * Called with the sequencer's lock held
+     */
+    private void startTicking() {
+        if (reliabilityTick == null) {
+            reliabilityTick = timer().scheduleWithFixedDelay(tickTask, TICK_INTERVAL, TICK_INTERVAL,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        for (Stream stream : streams.values()) {
+            if (stream.window.isEmpty()) {
+                continue;
+            }
+            /*
+             * Once sending stops, tell receivers the last sequence number so
+             * they can ask for datagrams lost from the end of the burst
+             */
+            int last = stream.window.last();
+            boolean idle = last == stream.previousLast && last != stream.lastHeartbeat;
+            if (idle || now - stream.heartbeatSent >= HEARTBEAT_INTERVAL) {
+                synchronized (control) {
+                    control.clear();
+                    Frame.putHeader(control, Frame.HEARTBEAT, stream.id);
+                    control.putInt(last).flip();
+                    try {
+                        emit(control, stream.room);
+                    } catch (IOException ex) {
+                        LOG.log(Level.WARNING, "Could not send a reliable delivery frame", ex);
+                    }
+                }
+                stream.lastHeartbeat = last;
+                stream.heartbeatSent = now;
+            }
+            stream.previousLast = last;
+        }
+        synchronized (sequencer) {
+            sequencer.tick(now, sequenced);
+        }
+    }
+
+    /*
+     * Send a NACK to every joined room, since the transport does not say which
+     * room the stream being asked about was heard in. Called with the control
+     * buffer's lock held.
+     */
+    private void sendControl() {
+        try {
+            if (!hasRooms()) {
+                emit(control);
+                return;
+            }
+            for (String room : rooms().getRooms()) {
+                control.rewind();
+                emit(control, room);
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Could not send a reliable delivery frame", ex);
+        }
+    }
+
+    private void unbatch(ByteBuffer payload, InetSocketAddress source, boolean self, long now) {
+        int end = payload.limit();
+        while (payload.remaining() >= Frame.BATCH_ENTRY_SIZE) {
+            int length = payload.getShort() & 0xffff;
+            if (length > payload.remaining()) {
+                /* truncated batch */
+                errors.increment();
+                break;
             }
+            int next = payload.position() + length;
+            payload.limit(next);
+            deliver(payload, source, self, now);
+            payload.limit(end).position(next);
+        }
+    }
+
+    private void deliver(ByteBuffer message, InetSocketAddress source, boolean self, long now) {
+        if (message == null) {
+            return;
         }
+        /*
+         * Only one thread at a time delivers, so the decoder and the
+         * character buffer can be reused for every datagram
+         */
+        int size = (int) Math.ceil(message.remaining() * (double) decoder.maxCharsPerByte());
+        if (received.capacity() < size) {
+            received = CharBuffer.allocate(size);
+        }
+        received.clear();
+        decoder.reset();
+        int position = message.position();
+        decoder.decode(message, received, true);
+        decoder.flush(received);
+        received.flip();
+        message.position(position);
+        messagesIn.increment();
+        Message m = new Message(received.toString(), source, self, now);
+        if (!receiver.accept(m)) {
+            // turned away, such as by a flood limit, so it is not journaled
+            return;
+        }
+        record(message, source, self, false);
+        receiver.receive(m);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see co.andrewbates.windtalker.Transport.Handler#failed(java.lang.
+     * Exception)
+     */
+    @Override
+    public void failed(Exception ex) {
+        errors.increment();
+        LOG.log(Level.WARNING, "Receive failed", ex);
     }
 
     /**
@@ -118,17 +1114,316 @@ public class Transceiver implements Runnable {
      *             thrown if the message exceeds the maximum length we can
      *             actually send on the network
      */
-    public void send(String message) throws MessageTooLongException {
-        if (message.length() > maxMessageSize) {
+    public synchronized void send(String message) throws MessageTooLongException {
+        int length = message.length();
+        if (length > maxMessageSize) {
+            throw new MessageTooLongException(maxMessageSize);
+        }
+        /* copy into a reused buffer rather than wrapping the String in a new one */
+        if (chars.capacity() < length) {
+            chars = CharBuffer.allocate(length);
+        }
+        chars.clear();
+        chars.put(message).flip();
+        send(chars);
+    }
+
+    /**
+     * Send the remaining characters of a buffer to the network. The
+     * characters are encoded straight into a direct buffer that is reused for
+     * every message, so once the buffers have grown to fit the messages being
+     * sent this does not allocate anything.
+     * 
+     * @param message
+     *            The message to send
+     * @throws MessageTooLongException
+     *             thrown if the message exceeds the maximum length we can
+     *             actually send on the network
+     */
+    public synchronized void send(CharBuffer message) throws MessageTooLongException {
+        if (message.remaining() > maxMessageSize) {
             throw new MessageTooLongException(maxMessageSize);
         }
-        byte[] payload = message.getBytes();
-        DatagramPacket packet = new DatagramPacket(payload, payload.length, broadcast, socket.getLocalPort());
-        System.out.println("TX: " + new String(payload));
+        outgoing.clear();
+        encoder.reset();
+        encoder.encode(message, outgoing, true);
+        encoder.flush(outgoing);
+        outgoing.flip();
+        int chunk = frame.capacity() - fragmentHeaderSize();
+        if ((outgoing.remaining() + chunk - 1) / chunk > MAX_FRAGMENTS) {
+            throw new MessageTooLongException(maxMessageSize);
+        }
+        record(outgoing, null, true, true);
+        messagesOut.increment();
+        if (compressor != null && outgoing.remaining() >= compressionThreshold) {
+            int length = outgoing.remaining();
+            if (compressor.compress(outgoing, compressed)) {
+                compressedMessages++;
+                compressedBytesIn += length;
+                compressedBytesOut += compressed.remaining();
+                /* compressed messages have their own frame */
+                flush();
+                try {
+                    sendFrames(compressed, Frame.COMPRESSED);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+                return;
+            }
+        }
+        if (lingerMillis > 0
+                && headerSize() + Frame.BATCH_ENTRY_SIZE + outgoing.remaining() <= batch.capacity()) {
+            addToBatch(outgoing);
+            return;
+        }
+        /* anything already batched has to go first to keep messages in order */
+        flush();
         try {
-            socket.send(packet);
+            sendFrames(outgoing, (byte) 0);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
     }
+
+    private void addToBatch(ByteBuffer message) {
+        int limit = Math.min(batch.capacity(), headerSize() + batchBytes);
+        if (batchCount > 0 && batch.position() + Frame.BATCH_ENTRY_SIZE + message.remaining() > limit) {
+            flush();
+        }
+        if (batchCount == 0) {
+            putHeader(batch, Frame.BATCH);
+            lingerFlush = timer().schedule(lingerTask, lingerMillis, TimeUnit.MILLISECONDS);
+        }
+        batch.putShort((short) message.remaining()).put(message);
+        batchCount++;
+        if (batch.position() + Frame.BATCH_ENTRY_SIZE >= limit) {
+            flush();
+        }
+    }
+
+    /*
+     * The thread shared by every transceiver for sending batches when their
+     * linger time is up and for reliable delivery's timeouts
+     */
+    private static synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "windtalker-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return timer;
+    }
+
+    /*
+     * Send a message as a single DATA frame if it fits, otherwise as a series
+     * of FRAGMENT frames, with the given flags added to the frame type
+     */
+    private void sendFrames(ByteBuffer message, byte flags) throws IOException {
+        if (message.remaining() + headerSize() <= frame.capacity()) {
+            frame.clear();
+            putHeader(frame, (byte) (Frame.DATA | flags));
+            frame.put(message).flip();
+            transmit(frame);
+            return;
+        }
+
+        int chunk = frame.capacity() - fragmentHeaderSize();
+        int count = (message.remaining() + chunk - 1) / chunk;
+        int id = nextMessageId++;
+        ByteBuffer piece = message.duplicate();
+        for (int i = 0; i < count; i++) {
+            piece.limit(Math.min(piece.position() + chunk, message.limit()));
+            frame.clear();
+            putHeader(frame, (byte) (Frame.FRAGMENT | flags));
+            frame.putInt(id).putShort((short) i).putShort((short) count);
+            frame.put(piece).flip();
+            transmit(frame);
+        }
+    }
+
+    /*
+     * In reliable mode frames are wrapped in a SEQUENCED frame, whose sequence
+     * number is filled in by transmit
+     */
+    private void putHeader(ByteBuffer datagram, byte type) {
+        if (reliable) {
+            Frame.putHeader(datagram, Frame.SEQUENCED, stream().id);
+            datagram.putInt(0).put(type);
+        } else {
+            Frame.putHeader(datagram, type, senderId);
+        }
+    }
+
+    private int headerSize() {
+        return reliable ? Frame.SEQUENCED_HEADER_SIZE : Frame.HEADER_SIZE;
+    }
+
+    private int fragmentHeaderSize() {
+        return headerSize() + Frame.FRAGMENT_HEADER_SIZE - Frame.HEADER_SIZE;
+    }
+
+    private void transmit(ByteBuffer datagram) throws IOException {
+        if (Frame.type(datagram) == Frame.SEQUENCED) {
+            stream().window.store(datagram);
+        }
+        emit(datagram);
+    }
+
+    /*
+     * The reliable stream for the current room. Without rooms there is one
+     * stream sent with the transceiver's own id, with rooms each gets a new
+     * random id. Called with our own lock held.
+     */
+    private Stream stream() {
+        String room = hasRooms() ? rooms().getRoom() : null;
+        Stream stream = streams.get(room == null ? "" : room);
+        if (stream == null) {
+            long id = room == null ? senderId : new Random().nextLong();
+            stream = new Stream(id, room);
+            streamIds.put(id, stream);
+            streams.put(room == null ? "" : room, stream);
+        }
+        return stream;
+    }
+
+    /*
+     * True if a stream id is this transceiver's id or one of its rooms'
+     */
+    private boolean isSelf(long sender) {
+        return sender == senderId || streamIds.containsKey(sender);
+    }
+
+    private void emit(ByteBuffer datagram) throws IOException {
+        emit(datagram, null);
+    }
+
+    /*
+     * Send a datagram to a room, or to the current room if room is null
+     */
+    private void emit(ByteBuffer datagram, String room) throws IOException {
+        packetsOut.increment();
+        bytesOut.add(datagram.remaining());
+        if (trace != null) {
+            trace.trace(true, null, datagram);
+        }
+        try {
+            if (room == null) {
+                transport.send(datagram);
+            } else {
+                rooms().send(datagram, room);
+            }
+        } catch (IOException ex) {
+            errors.increment();
+            throw ex;
+        }
+    }
+
+    @Override
+    public long getPacketsIn() {
+        return packetsIn.sum();
+    }
+
+    @Override
+    public long getPacketsOut() {
+        return packetsOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getReassemblyFailures() {
+        return reassembler.getExpired() + reassembler.getEvicted();
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    @Override
+    public long getNacksSent() {
+        synchronized (sequencer) {
+            return sequencer.getNacksSent();
+        }
+    }
+
+    @Override
+    public long getDuplicates() {
+        synchronized (sequencer) {
+            return sequencer.getDuplicates();
+        }
+    }
+
+    @Override
+    public long getDatagramsLost() {
+        synchronized (sequencer) {
+            return sequencer.getLost();
+        }
+    }
+
+    @Override
+    public long getTraceSamplesLost() {
+        return trace == null ? 0 : trace.getLost();
+    }
+
+    /**
+     * Send anything waiting in a batch, close the transport and stop
+     * publishing statistics
+     * 
+     * @throws IOException
+     *             thrown if the transport could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            synchronized (sequencer) {
+                if (reliabilityTick != null) {
+                    reliabilityTick.cancel(false);
+                }
+                inflater.end();
+            }
+            synchronized (this) {
+                if (compressor != null) {
+                    compressor.end();
+                    compressor = null;
+                }
+            }
+            Jmx.unregister(mbeanName);
+            mbeanName = null;
+            if (trace != null) {
+                trace.close();
+            }
+            transport.close();
+        }
+    }
 }
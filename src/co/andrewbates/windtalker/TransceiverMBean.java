@@ -0,0 +1,147 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+/**
+ * @author Andrew Bates
+ *
+ *         The statistics a Transceiver publishes through JMX
+ */
+public interface TransceiverMBean {
+    /**
+     * @return the number of datagrams received
+     */
+    public long getPacketsIn();
+
+    /**
+     * @return the number of datagrams sent
+     */
+    public long getPacketsOut();
+
+    /**
+     * @return the number of bytes received, not counting UDP and IP headers
+     */
+    public long getBytesIn();
+
+    /**
+     * @return the number of bytes sent, not counting UDP and IP headers
+     */
+    public long getBytesOut();
+
+    /**
+     * @return the number of whole messages received
+     */
+    public long getMessagesIn();
+
+    /**
+     * @return the number of messages sent
+     */
+    public long getMessagesOut();
+
+    /**
+     * @return the number of errors, such as failed sends and receives and
+     *         datagrams that could not be understood
+     */
+    public long getErrors();
+
+    /**
+     * @return the number of batch datagrams sent
+     */
+    public long getBatchesSent();
+
+    /**
+     * @return the average number of messages in a batch
+     */
+    public double getAverageBatchSize();
+
+    /**
+     * @return the number of fragmented messages given up on because fragments
+     *         went missing
+     */
+    public long getReassemblyFailures();
+
+    /**
+     * @return the shortest encoded message that is compressed, 0 if
+     *         compression is off
+     */
+    public int getCompressionThreshold();
+
+    /**
+     * @return the number of messages sent compressed
+     */
+    public long getCompressedMessages();
+
+    /**
+     * @return the size of the compressed messages sent as a fraction of their
+     *         size before compression
+     */
+    public double getCompressionRatio();
+
+    /**
+     * @return true if datagrams are sent reliably
+     */
+    public boolean isReliable();
+
+    /**
+     * @return the number of datagrams sent again because a receiver missed
+     *         them
+     */
+    public long getRetransmits();
+
+    /**
+     * @return the number of requests sent for missing datagrams
+     */
+    public long getNacksSent();
+
+    /**
+     * @return the number of reliable datagrams thrown away because they had
+     *         already been received
+     */
+    public long getDuplicates();
+
+    /**
+     * @return the number of reliable datagrams given up on because they were
+     *         never received
+     */
+    public long getDatagramsLost();
+
+    /**
+     * @return the size of the socket receive buffer, or 0 if it is not known
+     */
+    public int getReceiveBufferSize();
+
+    /**
+     * @return the size of the socket send buffer, or 0 if it is not known
+     */
+    public int getSendBufferSize();
+
+    /**
+     * @return the number of sampled datagrams the packet trace had to throw
+     *         away
+     */
+    public long getTraceSamplesLost();
+
+    /**
+     * @return the maximum number of characters in a message
+     */
+    public int getMaxMessageSize();
+
+    /**
+     * @return the maximum number of bytes in a datagram
+     */
+    public int getMaxDatagramSize();
+}
@@ -0,0 +1,139 @@
+/*
+ * LICENSE
+ *
+ * Copyright 2015 Andrew Bates Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.andrewbates.windtalker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Andrew Bates
+ *
+ *         A Transport moves raw datagrams between the Transceiver and the
+ *         network. The Transceiver takes care of turning messages into bytes
+ *         and back again, the transport only has to get those bytes on and off
+ *         the wire.
+ */
+public interface Transport extends Closeable {
+    /**
+     * The largest datagram payload that fits in a standard 1500 byte Ethernet
+     * packet
+     */
+    public static final int DEFAULT_DATAGRAM_SIZE = 1472;
+
+    /**
+     * Callback used by a transport to hand received datagrams to its owner
+     */
+    public interface Handler {
+        /**
+         * Called for every datagram the transport receives. The payload buffer
+         * is owned by the transport and is reused as soon as this method
+         * returns, so implementations must copy anything they want to keep.
+         *
+         * @param payload
+         *            buffer positioned at the start of the datagram payload
+         * @param source
+         *            address the datagram was sent from
+         * @param self
+         *            true if the datagram was sent by this host
+         */
+        public void handle(ByteBuffer payload, InetSocketAddress source, boolean self);
+
+        /**
+         * Called when the transport fails to receive a datagram. The
+         * transport carries on receiving afterwards.
+         *
+         * @param ex
+         *            what went wrong
+         */
+        public default void failed(Exception ex) {
+        }
+    }
+
+    /**
+     * Start receiving datagrams. Every datagram received after this call will
+     * be passed to the handler.
+     *
+     * @param handler
+     *            the handler that will receive incoming datagrams
+     * @throws IOException
+     *             thrown if the transport could not start listening
+     */
+    public void start(Handler handler) throws IOException;
+
+    /**
+     * Send the remaining bytes of the buffer as a single datagram. The buffer
+     * may be reused by the caller once this method returns.
+     *
+     * @param payload
+     *            the datagram payload
+     * @throws IOException
+     *             thrown if the datagram could not be sent
+     */
+    public void send(ByteBuffer payload) throws IOException;
+
+    /**
+     * @return the largest datagram payload that can be sent without the
+     *         network having to fragment it
+     */
+    public default int getMaxDatagramSize() {
+        return DEFAULT_DATAGRAM_SIZE;
+    }
+
+    /**
+     * Set the size of the socket buffer that holds received datagrams until
+     * they are read. Transports without a socket ignore this.
+     *
+     * @param bytes
+     *            the buffer size in bytes
+     * @throws IOException
+     *             thrown if the buffer size could not be set
+     */
+    public default void setReceiveBufferSize(int bytes) throws IOException {
+    }
+
+    /**
+     * @return the size of the socket receive buffer, or 0 if there is none
+     * @throws IOException
+     *             thrown if the buffer size could not be read
+     */
+    public default int getReceiveBufferSize() throws IOException {
+        return 0;
+    }
+
+    /**
+     * Set the size of the socket buffer that holds datagrams until they are
+     * sent. Transports without a socket ignore this.
+     *
+     * @param bytes
+     *            the buffer size in bytes
+     * @throws IOException
+     *             thrown if the buffer size could not be set
+     */
+    public default void setSendBufferSize(int bytes) throws IOException {
+    }
+
+    /**
+     * @return the size of the socket send buffer, or 0 if there is none
+     * @throws IOException
+     *             thrown if the buffer size could not be read
+     */
+    public default int getSendBufferSize() throws IOException {
+        return 0;
+    }
+}